@@ -35,12 +35,24 @@ public class ALU extends ManagedComponent
     public ComponentFactory getFactory() { return factory; }
 
     public void propagate(CircuitState state) {
-        int A = state.getValue(getEndLocation(0)).toIntValue();
-        int B = state.getValue(getEndLocation(1)).toIntValue();
-        int op = state.getValue(getEndLocation(2)).toIntValue();
+        Value a = state.getValue(getEndLocation(0));
+        Value b = state.getValue(getEndLocation(1));
+        Value o = state.getValue(getEndLocation(2));
+        State s = getState(state);
+        // the outputs depend on nothing else, and already show these inputs
+        if(a.equals(s.a) && b.equals(s.b) && o.equals(s.op)) return;
+        s.a = a;
+        s.b = b;
+        s.op = o;
+        if(!a.isFullyDefined() || !b.isFullyDefined() || !o.isFullyDefined()) {
+            propagatePartial(state, s, a, b, o);
+            return;
+        }
+        int A = a.toIntValue();
+        int B = b.toIntValue();
+        int op = o.toIntValue();
         int ans = 0;
         int overflow = 0;
-        int zero = 0;
         switch(op)
         {
         case 0x0:
@@ -86,15 +98,66 @@ public class ALU extends ManagedComponent
             ans = B >> A; 
             break;
         }
-        if(ans == 0) {
-        	zero = 1;
+        s.outputs.drive(state, this, getEndLocation(3), 0, ans == 0 ? Value.TRUE : Value.FALSE, 4);
+        s.outputs.drive(state, this, getEndLocation(4), 1, Value.createKnown(BITWIDTH_32, ans), 5);
+        s.outputs.drive(state, this, getEndLocation(5), 2, overflow != 0 ? Value.TRUE : Value.FALSE, 4);
+    }
+
+    // Inputs with unknown or error bits: drive every output bit that the
+    // defined bits decide, rather than whatever toIntValue makes of them.
+    private void propagatePartial(CircuitState state, State s, Value a, Value b, Value o) {
+        MaskedWord A = MaskedWord.of(a, 32);
+        MaskedWord B = MaskedWord.of(b, 32);
+        MaskedWord op = MaskedWord.of(o, 4);
+        MaskedWord ans;
+        Value overflow = Value.FALSE;
+        if(!op.isFullyDefined()) {
+            ans = MaskedWord.undefined(32, op);
+            overflow = ans.bit(0);
+        } else switch(op.value) {
+        case 0x0: ans = A.and(B); break;
+        case 0x1: ans = A.or(B); break;
+        case 0x2:
+            ans = A.add(B);
+            overflow = A.overflow(B, ans, false);
+            break;
+        case 0x6:
+            ans = A.sub(B);
+            overflow = A.overflow(B, ans, true);
+            break;
+        case 0x7: ans = A.lessThan(B); break;
+        case 0xC: ans = A.or(B).not(); break;
+        case 0x8: ans = B.shift(A, MaskedWord.SLL); break;
+        case 0x9: ans = B.shift(A, MaskedWord.SRL); break;
+        case 0xA: ans = B.shift(A, MaskedWord.SRA); break;
+        default: ans = new MaskedWord(32, 0, 0, 0); break;
+        }
+        s.outputs.drive(state, this, getEndLocation(3), 0, ans.isZero(), 4);
+        s.outputs.drive(state, this, getEndLocation(4), 1, ans.toValue(), 5);
+        s.outputs.drive(state, this, getEndLocation(5), 2, overflow, 4);
+    }
+
+    private static class State implements ComponentState, Cloneable {
+        Value a, b, op; // the inputs last evaluated, or null
+        DrivenOutputs outputs = new DrivenOutputs(3); // zero, result, overflow
+
+        public Object clone() {
+            try {
+                State ret = (State) super.clone();
+                ret.a = ret.b = ret.op = null;
+                ret.outputs = new DrivenOutputs(3);
+                return ret;
+            } catch(CloneNotSupportedException e) { return null; }
+        }
+    }
+
+    private State getState(CircuitState circuitState) {
+        State state = (State) circuitState.getData(this);
+        if(state == null) {
+            state = new State();
+            circuitState.setData(this, state);
         }
-        Value out = Value.createKnown(BITWIDTH_32, ans);
-        Value outZero = Value.createKnown(BITWIDTH_1, zero);        
-        Value outOverflow = Value.createKnown(BITWIDTH_1, overflow);
-        state.setValue(getEndLocation(3), outZero, this, 4);
-        state.setValue(getEndLocation(4), out, this, 5);
-        state.setValue(getEndLocation(5), outOverflow, this, 4);
+        return state;
     }
 
     static void drawALUIcon(ComponentDrawContext context, int x, int y) {
@@ -43,7 +43,6 @@ public class ALU4Bit extends ManagedComponent
         B = (B << 28) >> 28;
         int ans = 0;
         int overflow = 0;
-        int zero = 0;
         switch(op)
         {
         case 0x0:
@@ -89,15 +88,9 @@ public class ALU4Bit extends ManagedComponent
             ans = B >> A; 
             break;
         }
-        if(ans == 0) {
-        	zero = 1;
-        }
-        Value out = Value.createKnown(BITWIDTH_4, ans);
-        Value outZero = Value.createKnown(BITWIDTH_1, zero);        
-        Value outOverflow = Value.createKnown(BITWIDTH_1, overflow);
-        state.setValue(getEndLocation(3), outZero, this, 4);
-        state.setValue(getEndLocation(4), out, this, 5);
-        state.setValue(getEndLocation(5), outOverflow, this, 4);
+        state.setValue(getEndLocation(3), ans == 0 ? Value.TRUE : Value.FALSE, this, 4);
+        state.setValue(getEndLocation(4), RESULTS[ans & 0xF], this, 5);
+        state.setValue(getEndLocation(5), overflow != 0 ? Value.TRUE : Value.FALSE, this, 4);
     }
 
     static void drawALUIcon(ComponentDrawContext context, int x, int y) {
@@ -146,4 +139,10 @@ public class ALU4Bit extends ManagedComponent
     private static final BitWidth BITWIDTH_4 = BitWidth.create(4);
     private static final BitWidth BITWIDTH_1 = BitWidth.create(1);
 
+    // every 4-bit result, made once
+    private static final Value[] RESULTS = new Value[16];
+    static {
+        for(int i = 0; i < RESULTS.length; i++) RESULTS[i] = Value.createKnown(BITWIDTH_4, i);
+    }
+
 }
@@ -0,0 +1,232 @@
+package dk.diku.logisim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/** An on-disk cache of assembled MIPS programs, so that a circuit whose
+ * program was assembled before opens without running the assembler.
+ * Entries are named after the SHA-256 hash of the program source and
+ * hold
+ *
+ *   int  magic ("MASM")
+ *   int  version
+ *   byte source hash[32]
+ *   int  number of source lines
+ *   int  address of each line, or NO_ADDRESS
+ *   int  number of segments
+ *   int  first pc, int length, int words[length], int lines[length]
+ *        for each segment
+ *   int  number of data segments, and each as above
+ *   int  CRC-32 of all of the above
+ *
+ * all big-endian. An entry that does not check out in every respect is
+ * ignored, and replaced the next time the program is assembled.
+ *
+ * The cache is off unless the system property dk.diku.logisim.asmcache
+ * turns it on, as Logisim writes nothing outside the files it is asked
+ * to. Set to "on", the cache lives in logisim-mips under the user's
+ * cache directory; set to anything else but "off", it names the
+ * directory to use. Start Logisim with, for example,
+ *
+ *   java -Ddk.diku.logisim.asmcache=on -jar logisim-generic-2.7.1.jar
+ */
+class AssemblyCache {
+    private static final int MAGIC = 0x4d41534d;
+    // bump whenever the assembler would assemble a source differently
+    private static final int VERSION = 2;
+    private static final int HASH_SIZE = 32;
+    // smaller programs assemble faster than their entry could be read
+    static final int MIN_LINES = 256;
+
+    private AssemblyCache() { }
+
+    /** Returns a listing of src read from the cache, or null if src is not
+     * in the cache.
+     */
+    static Program32.Listing read(String src) {
+        File dir = directory();
+        if(dir == null) return null;
+        try {
+            byte[] hash = hash(src);
+            File f = new File(dir, toHex(hash));
+            if(!f.isFile()) return null;
+            ArrayList lines = Program32.splitLines(src);
+            if(lines.size() < MIN_LINES) return null;
+
+            ByteBuffer buf;
+            FileInputStream in = new FileInputStream(f);
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                if(size > Integer.MAX_VALUE || size % 4 != 0) return null;
+                buf = ByteBuffer.allocate((int) size);
+                while(buf.hasRemaining()) {
+                    if(channel.read(buf) < 0) return null;
+                }
+                buf.flip();
+            } finally {
+                in.close();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), 0, buf.limit() - 4);
+            if(buf.getInt(buf.limit() - 4) != (int) crc.getValue()) return null;
+            IntBuffer ints = buf.asIntBuffer();
+            ints.limit(ints.limit() - 1);
+
+            if(ints.remaining() < 2 + HASH_SIZE / 4 + 1) return null;
+            if(ints.get() != MAGIC || ints.get() != VERSION) return null;
+            buf.position(8);
+            for(int i = 0; i < HASH_SIZE; i++) {
+                if(buf.get() != hash[i]) return null;
+            }
+            ints.position(2 + HASH_SIZE / 4);
+
+            int n = ints.get();
+            if(n != lines.size() || ints.remaining() < n + 1) return null;
+            int[] addr_map = new int[n];
+            ints.get(addr_map);
+
+            Program32.Segment[] seg = readSegments(ints, n);
+            if(seg == null || !ints.hasRemaining()) return null;
+            Program32.Segment[] data = readSegments(ints, n);
+            if(data == null || ints.hasRemaining()) return null;
+
+            Program32.Listing ret = new Program32.Listing();
+            ret.setAssembled(src, lines, seg, data, addr_map);
+            return ret;
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    // the segments next in ints, for a source of n lines, or null
+    private static Program32.Segment[] readSegments(IntBuffer ints, int n) {
+        int count = ints.get();
+        if(count < 0 || count > ints.remaining() / 2) return null;
+        Program32.Segment[] seg = new Program32.Segment[count];
+        for(int s = 0; s < count; s++) {
+            if(ints.remaining() < 2) return null;
+            int pc = ints.get();
+            int len = ints.get();
+            if(len <= 0 || len > ints.remaining() / 2) return null;
+            seg[s] = new Program32.Segment(pc, new int[len]);
+            ints.get(seg[s].data);
+            ints.get(seg[s].line);
+            for(int i = 0; i < len; i++) {
+                if(seg[s].line[i] < 0 || seg[s].line[i] >= n) return null;
+            }
+            if(s > 0 && seg[s-1].start_pc + seg[s-1].data.length > pc) return null;
+        }
+        return seg;
+    }
+
+    /** Stores the assembly of code in the cache, if it is worth keeping.
+     * Failures are ignored; the cache is only ever a shortcut.
+     */
+    static void write(Program32.Listing code) {
+        File dir = directory();
+        if(dir == null || code.src_lines.size() < MIN_LINES) return;
+        File tmp = null;
+        try {
+            if(!dir.isDirectory() && !dir.mkdirs()) return;
+            byte[] hash = hash(code.src);
+
+            int size = 4 * (2 + 1 + code.addr_map.length + 1 + 1 + 1) + HASH_SIZE;
+            for(int s = 0; s < code.seg.length; s++) {
+                size += 4 * (2 + 2 * code.seg[s].data.length);
+            }
+            for(int s = 0; s < code.data_seg.length; s++) {
+                size += 4 * (2 + 2 * code.data_seg[s].data.length);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.put(hash);
+            buf.putInt(code.addr_map.length);
+            buf.asIntBuffer().put(code.addr_map);
+            buf.position(buf.position() + 4 * code.addr_map.length);
+            putSegments(buf, code.seg);
+            putSegments(buf, code.data_seg);
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), 0, buf.position());
+            buf.putInt((int) crc.getValue());
+            buf.flip();
+
+            // write a temporary file and rename it, so that a reader never
+            // sees half an entry
+            tmp = File.createTempFile("asm", ".tmp", dir);
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                FileChannel channel = out.getChannel();
+                while(buf.hasRemaining()) channel.write(buf);
+            } finally {
+                out.close();
+            }
+            File f = new File(dir, toHex(hash));
+            if(!tmp.renameTo(f)) {
+                f.delete();
+                if(tmp.renameTo(f)) tmp = null;
+            } else {
+                tmp = null;
+            }
+        } catch(IOException e) {
+            // not cached, then
+        } finally {
+            if(tmp != null) tmp.delete();
+        }
+    }
+
+    private static void putSegments(ByteBuffer buf, Program32.Segment[] seg) {
+        buf.putInt(seg.length);
+        for(int s = 0; s < seg.length; s++) {
+            buf.putInt(seg[s].start_pc);
+            buf.putInt(seg[s].data.length);
+            IntBuffer ints = buf.asIntBuffer();
+            ints.put(seg[s].data);
+            ints.put(seg[s].line);
+            buf.position(buf.position() + 8 * seg[s].data.length);
+        }
+    }
+
+    // the directory of the cache, or null if it is off
+    static File directory() {
+        String dir = System.getProperty("dk.diku.logisim.asmcache");
+        if(dir == null || dir.length() == 0 || dir.equals("off")) return null;
+        if(!dir.equals("on")) return new File(dir);
+        String base = System.getenv("XDG_CACHE_HOME");
+        if(base == null || base.length() == 0) base = System.getenv("LOCALAPPDATA");
+        if(base == null || base.length() == 0) {
+            String home = System.getProperty("user.home");
+            if(home == null) return null;
+            base = new File(home, ".cache").getPath();
+        }
+        return new File(base, "logisim-mips");
+    }
+
+    private static byte[] hash(String src) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(src.getBytes("UTF-8"));
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available");
+        }
+    }
+
+    private static String toHex(byte[] b) {
+        StringBuffer ret = new StringBuffer();
+        for(int i = 0; i < b.length; i++) {
+            ret.append(Character.forDigit((b[i] >> 4) & 0xf, 16));
+            ret.append(Character.forDigit(b[i] & 0xf, 16));
+        }
+        return ret.toString();
+    }
+}
@@ -0,0 +1,299 @@
+package dk.diku.logisim;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Assembles MIPS programs from the command line, without a GUI.
+ *
+ *   Program32 [-o dir] [-f lst,hex,bin] [-z] [-j threads] file...
+ *
+ * Files are assembled in parallel. Without -o, the listing of each file
+ * is written to standard output, in the order the files were given.
+ * With -o, each file gets one output in dir per format:
+ *
+ *   lst  the listing: address, word and disassembly of each word
+ *   hex  a Logisim "v2.0 raw" memory image, from address 0
+ *   bin  the words from the first segment up, big-endian, with the gaps
+ *        between segments zero-filled, as name.AAAAAAAA.bin where
+ *        AAAAAAAA is the address of the first word in hex; with -z, the
+ *        words from address 0 up as name.bin
+ *
+ * A program with a .data section also gets an image of its data memory
+ * in each of hex and bin asked for, named as above with .data after the
+ * name; its words are indexed by address / 4.
+ *
+ * The time taken by each file, or its errors, go to standard error. The
+ * exit status is 1 if any file could not be read or assembled.
+ */
+class BatchAssembler {
+    private static final int LIST = 1, HEX = 2, BIN = 4;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private File outDir = null;
+    private int formats = 0;
+    private boolean fromZero = false; // -z: images start at address 0
+
+    private BatchAssembler() { }
+
+    static int run(String[] args) {
+        BatchAssembler batch = new BatchAssembler();
+        int threads = Runtime.getRuntime().availableProcessors();
+        ArrayList files = new ArrayList();
+        try {
+            for(int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if(arg.equals("-o") && i + 1 < args.length) {
+                    batch.outDir = new File(args[++i]);
+                } else if(arg.equals("-f") && i + 1 < args.length) {
+                    String[] names = args[++i].split(",");
+                    for(int j = 0; j < names.length; j++) {
+                        if(names[j].equals("lst")) batch.formats |= LIST;
+                        else if(names[j].equals("hex")) batch.formats |= HEX;
+                        else if(names[j].equals("bin")) batch.formats |= BIN;
+                        else return usage("unknown format '" + names[j] + "'");
+                    }
+                } else if(arg.equals("-z")) {
+                    batch.fromZero = true;
+                } else if(arg.equals("-j") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                    if(threads < 1) return usage("-j needs a positive number");
+                } else if(arg.startsWith("-")) {
+                    return usage("unknown option '" + arg + "'");
+                } else {
+                    files.add(new File(arg));
+                }
+            }
+        } catch(NumberFormatException e) {
+            return usage("-j needs a positive number");
+        }
+        if(files.isEmpty()) return usage(null);
+        if(batch.formats == 0) batch.formats = LIST;
+        if(batch.outDir == null && batch.formats != LIST) {
+            return usage("-f hex and -f bin need -o");
+        }
+        if(batch.outDir != null && !batch.outDir.isDirectory() && !batch.outDir.mkdirs()) {
+            System.err.println("cannot create " + batch.outDir);
+            return 1;
+        }
+        return batch.assembleAll(files, threads);
+    }
+
+    private static int usage(String problem) {
+        if(problem != null) System.err.println(problem);
+        System.err.println("usage: Program32 [-o dir] [-f lst,hex,bin] [-z] [-j threads] <mips-asm-file>...");
+        return 1;
+    }
+
+    private int assembleAll(ArrayList files, int threads) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        ArrayList results = new ArrayList();
+        for(int i = 0; i < files.size(); i++) {
+            final File f = (File) files.get(i);
+            results.add(pool.submit(new Callable() {
+                public Object call() { return assemble(f); }
+            }));
+        }
+        pool.shutdown();
+
+        int status = 0;
+        Writer out = outDir == null
+            ? new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE) : null;
+        try {
+            for(int i = 0; i < results.size(); i++) {
+                Result r;
+                try {
+                    r = (Result) ((Future) results.get(i)).get();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 1;
+                } catch(ExecutionException e) {
+                    r = new Result((File) files.get(i));
+                    r.error = String.valueOf(e.getCause());
+                }
+                if(r.error != null) {
+                    status = 1;
+                    System.err.println(r.file + ": " + r.error);
+                } else {
+                    System.err.println(r.file + ": " + r.words + " words in "
+                        + r.segments + " segments, " + (r.nanos / 100000) / 10.0 + " ms");
+                    if(out != null) out.write(r.listing);
+                }
+            }
+            if(out != null) out.flush();
+        } catch(IOException e) {
+            System.err.println("error writing listing: " + e.getMessage());
+            return 1;
+        }
+        return status;
+    }
+
+    private static class Result {
+        File file;
+        String error; // null if assembled
+        String listing; // for standard output
+        int words, segments;
+        long nanos;
+        Result(File file) { this.file = file; }
+    }
+
+    private Result assemble(File f) {
+        Result r = new Result(f);
+        long start = System.nanoTime();
+        try {
+            Program32.Listing code = new Program32.Listing();
+            code.load(f);
+            r.segments = code.seg.length;
+            for(int s = 0; s < code.seg.length; s++) r.words += code.seg[s].data.length;
+            if(outDir == null) {
+                StringBuilder buf = new StringBuilder(r.words * 40 + code.seg.length);
+                appendListing(code, buf);
+                r.listing = buf.toString();
+            } else {
+                writeOutputs(code, f);
+            }
+        } catch(IOException e) {
+            r.error = e.getMessage();
+        }
+        r.nanos = System.nanoTime() - start;
+        return r;
+    }
+
+    private void writeOutputs(Program32.Listing code, File f) throws IOException {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        if(dot > 0) name = name.substring(0, dot);
+        if((formats & LIST) != 0) {
+            StringBuilder buf = new StringBuilder();
+            appendListing(code, buf);
+            Writer w = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(outDir, name + ".lst"))), BUFFER_SIZE);
+            try {
+                w.append(buf);
+            } finally {
+                w.close();
+            }
+        }
+        writeImages(code.seg, name);
+        if(code.data_seg.length > 0) writeImages(code.data_seg, name + ".data");
+    }
+
+    private void writeImages(Program32.Segment[] seg, String name) throws IOException {
+        if((formats & HEX) != 0) {
+            Writer w = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(outDir, name + ".hex"))), BUFFER_SIZE);
+            try {
+                writeHex(seg, w);
+            } finally {
+                w.close();
+            }
+        }
+        if((formats & BIN) != 0) {
+            int base = fromZero || seg.length == 0 ? 0 : seg[0].start_pc;
+            String file = fromZero ? name + ".bin"
+                : name + "." + Program32.toHex(base * 4, 8).substring(2) + ".bin";
+            OutputStream out = new FileOutputStream(new File(outDir, file));
+            try {
+                writeBin(seg, base, out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    // Writes the words from pc base up, big-endian, with zeros between
+    // the segments.
+    private static void writeBin(Program32.Segment[] seg, int base, OutputStream out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        IntBuffer ints = buf.asIntBuffer();
+        long pc = base;
+        for(int s = 0; s < seg.length; s++) {
+            for(long gap = 4 * (seg[s].start_pc - pc); gap > 0; ) {
+                int n = (int) Math.min(gap, BUFFER_SIZE);
+                out.write(ZEROS, 0, n);
+                gap -= n;
+            }
+            int[] data = seg[s].data;
+            for(int i = 0; i < data.length; ) {
+                int n = Math.min(data.length - i, BUFFER_SIZE / 4);
+                ints.clear();
+                ints.put(data, i, n);
+                out.write(buf.array(), 0, 4 * n);
+                i += n;
+            }
+            pc = (long) seg[s].start_pc + data.length;
+        }
+    }
+
+    private static final byte[] ZEROS = new byte[BUFFER_SIZE];
+
+    static void appendListing(Program32.Listing code, StringBuilder out) {
+        for(int s = 0; s < code.seg.length; s++) {
+            Program32.Segment seg = code.seg[s];
+            for(int i = 0; i < seg.data.length; i++) {
+                int pc = seg.start_pc + i;
+                Program32.appendHex(out, pc*4, 8);
+                out.append(" : ");
+                Program32.appendHex(out, seg.data[i], 8);
+                out.append(" : ");
+                Program32.decode(seg.data[i], pc*4, out);
+                out.append('\n');
+            }
+            out.append('\n');
+        }
+    }
+
+    // Writes the words from address 0 in the format of HexFile, with
+    // runs of repeated words (the gaps between segments) abbreviated.
+    private static void writeHex(Program32.Segment[] segs, Writer out) throws IOException {
+        out.write("v2.0 raw\n");
+        StringBuilder line = new StringBuilder();
+        int col = 0;
+        int pc = 0;
+        for(int s = 0; s <= segs.length; s++) {
+            Program32.Segment seg = s < segs.length ? segs[s] : null;
+            int end = seg != null ? seg.start_pc : pc;
+            int zeros = end - pc;
+            int i = 0;
+            while(zeros > 0 || (seg != null && i < seg.data.length)) {
+                int value, run;
+                if(zeros > 0) {
+                    value = 0;
+                    run = zeros;
+                    zeros = 0;
+                } else {
+                    value = seg.data[i];
+                    run = 1;
+                    while(i + run < seg.data.length && seg.data[i + run] == value) run++;
+                    i += run;
+                }
+                if(col > 0) line.append(col % 8 == 0 ? '\n' : ' ');
+                if(run >= 4) line.append(run).append('*');
+                else for(int k = 1; k < run; k++, col++) {
+                    line.append(Integer.toHexString(value)).append(col % 8 == 7 ? '\n' : ' ');
+                }
+                line.append(Integer.toHexString(value));
+                col++;
+                if(line.length() >= BUFFER_SIZE) {
+                    out.append(line);
+                    line.setLength(0);
+                }
+            }
+            if(seg != null) pc = seg.start_pc + seg.data.length;
+        }
+        if(col > 0) line.append('\n');
+        out.append(line);
+    }
+}
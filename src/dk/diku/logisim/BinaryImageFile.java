@@ -0,0 +1,158 @@
+package dk.diku.logisim;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/** Reads and writes memory contents in a compact binary format, which
+ * loads far faster than the text format of HexFile. A file begins with
+ * the header
+ *
+ *   int  magic ("MRAM")
+ *   byte version (1)
+ *   byte address width, in bits
+ *   byte value width, in bits
+ *   byte page size, as a power of two
+ *
+ * followed by records for runs of consecutive pages that are not all
+ * zero, each holding
+ *
+ *   int  first page
+ *   int  number of pages
+ *   int  values[number of pages * page size]
+ *
+ * in increasing page order. Pages missing from the file are zero. All
+ * numbers are big-endian.
+ */
+class BinaryImageFile {
+    private static final int MAGIC = 0x4d52414d;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 8;
+
+    private BinaryImageFile() { }
+
+    public static void save(File f, MemContents src) throws IOException {
+        int pageSize = src.getPageSize();
+        int pageCount = src.getPageCount();
+        int[] values = new int[pageSize];
+        ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(HEADER_SIZE, pageSize * 4));
+        IntBuffer ints = buf.asIntBuffer();
+
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            FileChannel channel = out.getChannel();
+            buf.putInt(MAGIC);
+            buf.put((byte) VERSION);
+            buf.put((byte) src.getLogLength());
+            buf.put((byte) src.getValueWidth());
+            buf.put((byte) Integer.numberOfTrailingZeros(pageSize));
+            buf.flip();
+            writeFully(channel, buf);
+
+            int first = 0;
+            while(first < pageCount) {
+                if(!src.isPageInUse(first)) { first++; continue; }
+                int last = first + 1;
+                while(last < pageCount && src.isPageInUse(last)) last++;
+
+                buf.clear();
+                buf.putInt(first);
+                buf.putInt(last - first);
+                buf.flip();
+                writeFully(channel, buf);
+                for(int i = first; i < last; i++) {
+                    src.copyPage(i, values);
+                    ints.clear();
+                    ints.put(values);
+                    buf.clear();
+                    writeFully(channel, buf);
+                }
+                first = last;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Replaces the contents of dst with those stored in f. Values that do
+     * not fit the address width of dst are dropped.
+     */
+    public static void open(MemContents dst, File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        dst.beginBatch();
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, "header");
+            if(header.getInt() != MAGIC) {
+                throw new IOException(f.getName() + " is not a binary memory image");
+            }
+            int version = header.get();
+            if(version != VERSION) {
+                throw new IOException("unsupported binary image version " + version);
+            }
+            header.get(); // address width: records say where each page goes
+            header.get(); // value width: values are masked as they are stored
+            int pageBits = header.get();
+            if(pageBits < 0 || pageBits > 24) {
+                throw new IOException("bad page size in binary image");
+            }
+            int pageSize = 1 << pageBits;
+            long size = dst.getLastOffset() + 1;
+
+            dst.clear();
+            int[] values = new int[pageSize];
+            ByteBuffer buf = ByteBuffer.allocateDirect(pageSize * 4);
+            IntBuffer ints = buf.asIntBuffer();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            while(true) {
+                record.clear();
+                if(channel.read(record) < 0) break;
+                readFully(channel, record, "page record");
+                long first = record.getInt() & 0xffffffffL;
+                int count = record.getInt();
+                if(count < 0) throw new IOException("bad page record in binary image");
+                for(int i = 0; i < count; i++) {
+                    buf.clear();
+                    readFully(channel, buf, "page");
+                    long start = (first + i) << pageBits;
+                    if(start >= size) continue;
+                    ints.clear();
+                    ints.get(values);
+                    if(start + pageSize > size) {
+                        int[] part = new int[(int) (size - start)];
+                        System.arraycopy(values, 0, part, 0, part.length);
+                        dst.set(start, part);
+                    } else {
+                        dst.set(start, values);
+                    }
+                }
+            }
+        } finally {
+            dst.endBatch();
+            in.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf)
+            throws IOException {
+        while(buf.hasRemaining()) channel.write(buf);
+    }
+
+    // Fills what remains of buf, and flips it for reading.
+    private static void readFully(FileChannel channel, ByteBuffer buf, String what)
+            throws IOException {
+        while(buf.hasRemaining()) {
+            if(channel.read(buf) < 0) {
+                throw new EOFException("binary image ends inside " + what);
+            }
+        }
+        buf.flip();
+    }
+}
@@ -0,0 +1,36 @@
+package dk.diku.logisim;
+
+import com.cburch.logisim.circuit.CircuitState;
+import com.cburch.logisim.comp.Component;
+import com.cburch.logisim.data.Location;
+import com.cburch.logisim.data.Value;
+import com.cburch.logisim.instance.InstanceState;
+
+/** The values a component last drove onto its outputs in one circuit
+ * state. Every setValue queues an event for the propagator, even when
+ * the output already carries the value, so driving an output again with
+ * the value it has is skipped.
+ *
+ * A component must drive the outputs it tracks only through drive(), and
+ * keep one DrivenOutputs per circuit state, in its state data; a reset
+ * discards both the values and the state.
+ */
+class DrivenOutputs {
+    private Value[] last;
+
+    DrivenOutputs(int outputs) {
+        last = new Value[outputs];
+    }
+
+    void drive(CircuitState state, Component comp, Location loc, int output, Value v, int delay) {
+        if(v.equals(last[output])) return;
+        last[output] = v;
+        state.setValue(loc, v, comp, delay);
+    }
+
+    void drive(InstanceState state, int port, int output, Value v, int delay) {
+        if(v.equals(last[output])) return;
+        last[output] = v;
+        state.setPort(port, v, delay);
+    }
+}
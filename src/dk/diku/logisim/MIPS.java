@@ -23,6 +23,7 @@ public class MIPS extends Library {
     public MIPS() {
         tools = Arrays.asList(new AddTool[] {
                 new AddTool(RegisterFile32.factory),
+                new AddTool(new RegisterFileN()),
                 new AddTool(Program32.factory),
                 new AddTool(ALU.factory),
                 new AddTool(ALU4Bit.factory),
@@ -0,0 +1,196 @@
+package dk.diku.logisim;
+
+import com.cburch.logisim.data.BitWidth;
+import com.cburch.logisim.data.Value;
+
+/** A word of up to 32 bits, some of which may be unknown or an error,
+ * held as three masks so that operations on it work on all bits at once.
+ * Bit i of error is set if bit i is an error, bit i of unknown if it is
+ * unknown and not an error, and value holds the other bits, with zeros
+ * where error or unknown is set.
+ *
+ * The operations give every bit of the result that the known bits of the
+ * operands decide, and mark the rest as an error if an error bit of an
+ * operand got into them, or unknown otherwise. Sums follow
+ * Adder.computeSum: the bits below the lowest undefined bit of either
+ * operand are exact, and that bit and all above it take its kind, error
+ * winning over unknown.
+ */
+final class MaskedWord {
+    final int width;
+    final int error;
+    final int unknown;
+    final int value;
+
+    MaskedWord(int width, int error, int unknown, int value) {
+        int mask = mask(width);
+        this.width = width;
+        this.error = error & mask;
+        this.unknown = unknown & mask & ~this.error;
+        this.value = value & mask & ~(this.error | this.unknown);
+    }
+
+    static int mask(int width) {
+        return width >= 32 ? -1 : (1 << width) - 1;
+    }
+
+    /** The bits of v as a word of the given width. Bits that v does not
+     * have are unknown.
+     */
+    static MaskedWord of(Value v, int width) {
+        int w = v.getWidth();
+        if(w == width && v.isFullyDefined()) return new MaskedWord(width, 0, 0, v.toIntValue());
+        int error = 0, unknown = 0, value = 0;
+        for(int i = 0; i < width; i++) {
+            Value b = i < w ? v.get(i) : Value.UNKNOWN;
+            if(b == Value.TRUE) value |= 1 << i;
+            else if(b == Value.ERROR) error |= 1 << i;
+            else if(b != Value.FALSE) unknown |= 1 << i;
+        }
+        return new MaskedWord(width, error, unknown, value);
+    }
+
+    /** A word of the given width that is all error, if kind has an error
+     * bit, or else all unknown.
+     */
+    static MaskedWord undefined(int width, MaskedWord kind) {
+        return kind.error != 0 ? new MaskedWord(width, -1, 0, 0)
+            : new MaskedWord(width, 0, -1, 0);
+    }
+
+    boolean isFullyDefined() {
+        return (error | unknown) == 0;
+    }
+
+    int defined() {
+        return mask(width) & ~(error | unknown);
+    }
+
+    Value toValue() {
+        BitWidth w = BitWidth.create(width);
+        if(isFullyDefined()) return Value.createKnown(w, value);
+        if(error == mask(width)) return Value.createError(w);
+        if(unknown == mask(width)) return Value.createUnknown(w);
+        Value[] bits = new Value[width];
+        for(int i = 0; i < width; i++) bits[i] = bit(i);
+        return Value.create(bits);
+    }
+
+    Value bit(int i) {
+        if((error & (1 << i)) != 0) return Value.ERROR;
+        if((unknown & (1 << i)) != 0) return Value.UNKNOWN;
+        return (value & (1 << i)) != 0 ? Value.TRUE : Value.FALSE;
+    }
+
+    // a bit of each word that is 0 forces 0, else an error forces an error
+    MaskedWord and(MaskedWord o) {
+        int zeros = (defined() & ~value) | (o.defined() & ~o.value);
+        return new MaskedWord(width, (error | o.error) & ~zeros,
+            (unknown | o.unknown) & ~zeros, value & o.value);
+    }
+
+    // a bit of each word that is 1 forces 1, else an error forces an error
+    MaskedWord or(MaskedWord o) {
+        int ones = value | o.value;
+        return new MaskedWord(width, (error | o.error) & ~ones,
+            (unknown | o.unknown) & ~ones, ones);
+    }
+
+    MaskedWord not() {
+        return new MaskedWord(width, error, unknown, ~value);
+    }
+
+    MaskedWord add(MaskedWord o) {
+        return sum(o, value + o.value);
+    }
+
+    MaskedWord sub(MaskedWord o) {
+        return sum(o, value - o.value);
+    }
+
+    // The low bits of exact are right up to the lowest undefined bit of
+    // either word, as no carry or borrow reaches down past it.
+    private MaskedWord sum(MaskedWord o, int exact) {
+        int bad = error | unknown | o.error | o.unknown;
+        if(bad == 0) return new MaskedWord(width, 0, 0, exact);
+        int low = bad & -bad;
+        int above = -low; // the lowest undefined bit and all above it
+        if(((error | o.error) & low) != 0) return new MaskedWord(width, above, 0, exact);
+        return new MaskedWord(width, 0, above, exact);
+    }
+
+    /** Whether the sum or difference (sub) of this word and o, which came
+     * to sum, overflows as a two's complement number.
+     */
+    Value overflow(MaskedWord o, MaskedWord sum, boolean sub) {
+        int top = 1 << (width - 1);
+        if(((defined() & o.defined()) & top) != 0) {
+            // operands of unlike sign never overflow a sum; like signs
+            // never overflow a difference
+            boolean alike = ((value ^ o.value) & top) == 0;
+            if(alike == sub) return Value.FALSE;
+            if((sum.defined() & top) != 0) {
+                return ((sum.value ^ value) & top) != 0 ? Value.TRUE : Value.FALSE;
+            }
+        }
+        return (sum.error & top) != 0 ? Value.ERROR : Value.UNKNOWN;
+    }
+
+    /** 1 if this word is less than o as a two's complement number, else 0. */
+    MaskedWord lessThan(MaskedWord o) {
+        int top = 1 << (width - 1);
+        int bad = error | unknown | o.error | o.unknown;
+        // the bits above every undefined bit, which alone can decide
+        int sure = bad == 0 ? mask(width) : ~((Integer.highestOneBit(bad) << 1) - 1) & mask(width);
+        int diff = (value ^ o.value) & sure;
+        if(diff == 0 && bad != 0) {
+            if((error | o.error) != 0) return new MaskedWord(width, 1, 0, 0);
+            return new MaskedWord(width, 0, 1, 0);
+        }
+        int first = Integer.highestOneBit(diff);
+        // flipping the sign bits makes the signed order the unsigned one
+        boolean less = first != 0 && ((o.value ^ (first == top ? top : 0)) & first) != 0;
+        return new MaskedWord(width, 0, 0, less ? 1 : 0);
+    }
+
+    static final int SLL = 0, SRL = 1, SRA = 2;
+
+    /** This word shifted by the low five bits of amount, of kind SLL, SRL
+     * or SRA. An undefined amount gives the bits on which every shift it
+     * could be agrees.
+     */
+    MaskedWord shift(MaskedWord amount, int kind) {
+        int bad = (amount.error | amount.unknown) & 31;
+        if((amount.error & 31) != 0) return undefined(width, amount);
+        if(bad == 0) return shift(amount.value & 31, kind);
+        int fixed = amount.value & 31 & ~bad;
+        int error = 0, unknown = 0, ones = 0, zeros = 0;
+        for(int s = 0; s < 32; s++) {
+            if((s & ~bad) != fixed) continue;
+            MaskedWord w = shift(s, kind);
+            error |= w.error;
+            unknown |= w.unknown;
+            ones |= w.value;
+            zeros |= w.defined() & ~w.value;
+        }
+        return new MaskedWord(width, error, unknown | (ones & zeros), ones);
+    }
+
+    private MaskedWord shift(int s, int kind) {
+        if(kind == SLL) return new MaskedWord(width, error << s, unknown << s, value << s);
+        if(kind == SRL) return new MaskedWord(width, error >>> s, unknown >>> s, value >>> s);
+        // sign-extend from the top bit first, the state of which fills in
+        int ext = 32 - width;
+        return new MaskedWord(width, ((error << ext) >> ext) >> s,
+            ((unknown << ext) >> ext) >> s, ((value << ext) >> ext) >> s);
+    }
+
+    /** 1 if every bit is 0, 0 if a bit is 1, and otherwise an error if a
+     * bit is an error or unknown if not.
+     */
+    Value isZero() {
+        if(value != 0) return Value.FALSE;
+        if(error != 0) return Value.ERROR;
+        return unknown != 0 ? Value.UNKNOWN : Value.TRUE;
+    }
+}
@@ -34,14 +34,13 @@ import com.cburch.logisim.std.memory.*;
 
 abstract class Mem extends InstanceFactory {
     // Note: The code is meant to be able to handle up to 32-bit addresses, but it
-    // hasn't been debugged thoroughly. There are two definite changes I would
-    // make if I were to extend the address bits: First, there would need to be some
-    // modification to the memory's graphical representation, because there isn't
-    // room in the box to include such long memory addresses with the current font
-    // size. And second, I'd alter the MemContents class's PAGE_SIZE_BITS constant
-    // to 14 so that its "page table" isn't quite so big.
+    // hasn't been debugged thoroughly. MemContents keeps a sparse two-level page
+    // table, so wide memories only pay for the pages actually used; beyond 30
+    // bits the memory's graphical representation would need some modification,
+    // because there isn't room in the box to include such long memory addresses
+    // with the current font size.
     public static final Attribute ADDR_ATTR = Attributes.forBitWidth(
-            "addrWidth", new SimpleStringGetter("Address Bit Width"), 2, 24);
+            "addrWidth", new SimpleStringGetter("Address Bit Width"), 2, 30);
     /*public static final Attribute DATA_ATTR = Attributes.forBitWidth(
             "dataWidth", Strings.getter("ramDataWidthAttr")); */
     
@@ -98,7 +97,7 @@ abstract class Mem extends InstanceFactory {
         } else {
             BitWidth addr = (BitWidth) painter.getAttributeValue(ADDR_ATTR);
             int addrBits = addr.getWidth();
-            int bytes = 1 << (addrBits+2); // count bytes, not words
+            long bytes = 1L << (addrBits+2); // count bytes, not words
             String label;
             /*if(this instanceof Rom) {
                 if(addrBits >= 30) {
@@ -153,8 +152,9 @@ abstract class Mem extends InstanceFactory {
         return super.getInstanceFeature(instance, key);
     }
     
-    static class MemListener implements HexModelListener {
+    static class MemListener implements MemContents.WordListener {
         Instance instance;
+        MemState state; // if set, stores outside its visible rows are not repainted
         
         MemListener(Instance instance) { this.instance = instance; }
         
@@ -164,5 +164,9 @@ abstract class Mem extends InstanceFactory {
                 long numBytes, int[] values) {
             instance.fireInvalidated();
         }
+
+        public void wordChanged(HexModel source, long addr, int oldValue) {
+            if(state == null || state.isVisible(addr)) instance.fireInvalidated();
+        }
     }
 }
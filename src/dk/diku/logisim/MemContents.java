@@ -3,7 +3,17 @@
 
 package dk.diku.logisim;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
 
 import com.cburch.hex.HexModel;
@@ -13,19 +23,120 @@ import com.cburch.logisim.util.EventSourceWeakSupport;
 import com.cburch.logisim.std.memory.*;
 
 class MemContents implements Cloneable, HexModel {
-    private static final int PAGE_SIZE_BITS = 12;
-    private static final int PAGE_SIZE = 1 << PAGE_SIZE_BITS;
-    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    // Words are kept in leaf pages reached through a two-level page table, so
+    // that a sparse memory only pays for the regions actually touched. Pages
+    // hold 4K words, or 16K words for address spaces of 2^25 words and more.
+    private static final int SMALL_PAGE_BITS = 12;
+    private static final int LARGE_PAGE_BITS = 14;
+    private static final int LARGE_PAGE_MIN_ADDR_BITS = 25;
+    private static final int TABLE_BITS = 10; // at most 1K pages per table
+
+    private static final WordListener[] NO_WORD_LISTENERS = new WordListener[0];
+
+    // An image file is mapped in regions of at most 2^28 words, as one
+    // buffer cannot span more than 2 GB.
+    private static final int REGION_BITS = 28;
+
+    // The contents that write to each image file, by canonical path. Only
+    // the latest contents to open a file writes to it; the ones before it
+    // are detached.
+    private static final HashMap imageWriters = new HashMap();
+
+    // The snapshots of clones of memories backed by each image file, by
+    // canonical path, as weak references; a writer of the file saves a
+    // page into every one of them before changing it.
+    private static final HashMap imageSnapshots = new HashMap();
+
+    // What the image file held when an image-backed memory was cloned, in
+    // the pages that have been written since. The clone reads every other
+    // page from the file, which still holds it as it was.
+    private static class ImageSnapshot {
+        final MappedByteBuffer[] image;
+        final int pageBits;
+        final int pageCount;
+        final BitSet saved = new BitSet();
+        // a heap copy of each saved page, or none if it held only zeroes
+        final HashMap pages = new HashMap();
+
+        ImageSnapshot(MappedByteBuffer[] image, int pageBits, int addrBits) {
+            this.image = image;
+            this.pageBits = pageBits;
+            this.pageCount = 1 << (addrBits - pageBits);
+        }
+
+        // saves the pages holding words start to end - 1, if not saved yet
+        void save(long start, long end) {
+            for(long i = start >>> pageBits; i <= (end - 1) >>> pageBits && i < pageCount; i++) {
+                int index = (int) i;
+                if(saved.get(index)) continue;
+                saved.set(index);
+                MemContentsSub.ContentsInterface page = mapPage(image, pageBits, index);
+                if(!page.isClear()) pages.put(Integer.valueOf(index), page.clone());
+            }
+        }
+    }
+
+    /** A listener that can be told about a single changed word without an
+     * array of old values being allocated for it. Such listeners are held
+     * strongly, as they belong to the same state as the contents.
+     */
+    interface WordListener extends HexModelListener {
+        public void wordChanged(HexModel source, long addr, int oldValue);
+    }
+
+    // a range of changed addresses, and the values they held before
+    private static class Change {
+        long start;
+        long end;
+        int[] oldValues;
+
+        Change(long start, long end, int[] oldValues) {
+            this.start = start;
+            this.end = end;
+            this.oldValues = oldValues;
+        }
+    }
     
     static MemContents create(int addrBits, int width) {
         return new MemContents(addrBits, width);
     }
     
     private EventSourceWeakSupport listeners = null;
+    private WordListener[] wordListeners = NO_WORD_LISTENERS;
+    private int batchDepth = 0;
+    // A batch holding a single word change keeps it here, so that it can
+    // be reported through wordChanged without allocating anything.
+    private boolean batchWordPending = false;
+    private long batchWordAddr;
+    private int batchWordOld;
+    private ArrayList batchRanges = new ArrayList(); // merged Changes, sorted by address
+    private ArrayList batchOldValues = new ArrayList(); // Changes in the order they happened
     private int width;
     private int addrBits;
     private int mask;
-    private MemContentsSub.ContentsInterface[] pages;
+    private int pageBits;
+    private int pageSize;
+    private int pageMask;
+    private int tableBits;
+    private int tableMask;
+    private MemContentsSub.ContentsInterface[][] tables;
+    // Pages holding only zeroes are always freed, so the memory is clear
+    // exactly when no page is in use.
+    private int pagesInUse;
+    private BitSet dirtyPages; // pages written since the last markClean()
+    // When an image file backs the memory, the whole file is mapped when it
+    // is opened, and its pages are wrapped the first time they are touched;
+    // loadedPages records which pages have been looked at, the others may
+    // still hold data on disk. A detached memory reads the file but never
+    // writes it: a page is copied to the heap before it is first written.
+    private File imageFile = null;
+    private MappedByteBuffer[] image = null;
+    private BitSet loadedPages = null;
+    private volatile boolean detached = false;
+    // The snapshots of this file, which guard snapshot as well; a clone
+    // reads the pages it has not loaded through snapshot.
+    private ArrayList snapshots = null;
+    private ImageSnapshot snapshot = null;
     
     private MemContents(int addrBits, int width) {
         listeners = new EventSourceWeakSupport();
@@ -36,18 +147,40 @@ class MemContents implements Cloneable, HexModel {
     // HexModel methods
     //
     public void addHexModelListener(HexModelListener l) {
+        if(l instanceof WordListener) {
+            WordListener[] old = wordListeners;
+            wordListeners = new WordListener[old.length + 1];
+            System.arraycopy(old, 0, wordListeners, 0, old.length);
+            wordListeners[old.length] = (WordListener) l;
+            return;
+        }
         if(listeners == null) listeners = new EventSourceWeakSupport();
         listeners.add(l);
     }
 
     public void removeHexModelListener(HexModelListener l) {
+        if(l instanceof WordListener) {
+            WordListener[] old = wordListeners;
+            for(int i = 0; i < old.length; i++) {
+                if(old[i] == l) {
+                    wordListeners = new WordListener[old.length - 1];
+                    System.arraycopy(old, 0, wordListeners, 0, i);
+                    System.arraycopy(old, i + 1, wordListeners, i, old.length - i - 1);
+                    break;
+                }
+            }
+            return;
+        }
         if(listeners == null) return;
-        listeners.add(l);
+        listeners.remove(l);
         if(listeners.isEmpty()) listeners = null; 
-//        if(listeners.size() == 0) listeners = null; 
     }
     
     private void fireMetainfoChanged() {
+        WordListener[] wls = wordListeners;
+        for(int i = 0; i < wls.length; i++) {
+            wls[i].metainfoChanged(this);
+        }
         if(listeners == null) return;
         Iterator it = listeners.iterator();
         if(!it.hasNext()) {
@@ -62,6 +195,14 @@ class MemContents implements Cloneable, HexModel {
     
     private void fireBytesChanged(long start, long numBytes,
             int[] oldValues) {
+        if(batchDepth > 0) {
+            addBatchChange(start, numBytes, listeners == null ? null : oldValues);
+            return;
+        }
+        WordListener[] wls = wordListeners;
+        for(int i = 0; i < wls.length; i++) {
+            wls[i].bytesChanged(this, start, numBytes, oldValues);
+        }
         if(listeners == null) return;
         Iterator it = listeners.iterator();
         if(!it.hasNext()) {
@@ -74,18 +215,170 @@ class MemContents implements Cloneable, HexModel {
         }
     }
 
+    // Single-word variant of fireBytesChanged: the old-values array is only
+    // built if a listener other than a WordListener is registered.
+    private void fireWordChanged(long addr, int oldValue) {
+        if(batchDepth > 0) {
+            if(!batchWordPending && batchRanges.isEmpty()) {
+                batchWordPending = true;
+                batchWordAddr = addr;
+                batchWordOld = oldValue;
+            } else {
+                addBatchChange(addr, 1, listeners == null ? null : new int[] { oldValue });
+            }
+            return;
+        }
+        WordListener[] wls = wordListeners;
+        for(int i = 0; i < wls.length; i++) {
+            wls[i].wordChanged(this, addr, oldValue);
+        }
+        if(listeners == null) return;
+        Iterator it = listeners.iterator();
+        if(!it.hasNext()) {
+            listeners = null;
+            return;
+        }
+        int[] oldValues = new int[] { oldValue };
+        while(it.hasNext()) {
+            HexModelListener l = (HexModelListener) it.next();
+            l.bytesChanged(this, addr, 1, oldValues);
+        }
+    }
+
+    //
+    // batched change notification
+    //
+
+    /** Starts collecting changes instead of reporting them one at a time.
+     * Batches nest; when the outermost one ends, listeners are told once
+     * for each merged range of changed addresses, or through wordChanged
+     * if only one word changed.
+     */
+    void beginBatch() {
+        batchDepth++;
+    }
+
+    void endBatch() {
+        if(batchDepth == 0) return;
+        batchDepth--;
+        if(batchDepth > 0) return;
+        if(batchWordPending) {
+            batchWordPending = false;
+            fireWordChanged(batchWordAddr, batchWordOld);
+            return;
+        }
+        if(batchRanges.isEmpty()) return;
+
+        // a listener may change the contents again, so work from copies
+        Object[] ranges = batchRanges.toArray();
+        Object[] olds = batchOldValues.toArray();
+        batchRanges.clear();
+        batchOldValues.clear();
+        for(int i = 0; i < ranges.length; i++) {
+            Change range = (Change) ranges[i];
+            int[] oldValues = null;
+            if(listeners != null && olds.length > 0
+                    && range.end - range.start <= Integer.MAX_VALUE) {
+                // apply the newest values first so that the oldest win
+                oldValues = new int[(int) (range.end - range.start)];
+                for(int j = olds.length - 1; j >= 0; j--) {
+                    Change c = (Change) olds[j];
+                    long lo = Math.max(c.start, range.start);
+                    long hi = Math.min(c.end, range.end);
+                    if(lo < hi) {
+                        System.arraycopy(c.oldValues, (int) (lo - c.start),
+                                oldValues, (int) (lo - range.start), (int) (hi - lo));
+                    }
+                }
+            }
+            fireBytesChanged(range.start, range.end - range.start, oldValues);
+        }
+    }
+
+    private void addBatchChange(long start, long numBytes, int[] oldValues) {
+        if(batchWordPending) {
+            // no longer a single word: record it with the rest
+            batchWordPending = false;
+            addBatchChange(batchWordAddr, 1,
+                    listeners == null ? null : new int[] { batchWordOld });
+        }
+        long end = start + numBytes;
+        if(oldValues != null) {
+            end = start + Math.min(numBytes, oldValues.length);
+            batchOldValues.add(new Change(start, end, oldValues));
+        }
+
+        // merge with every range that overlaps or touches [start, end)
+        ArrayList ranges = batchRanges;
+        int i = 0;
+        while(i < ranges.size() && ((Change) ranges.get(i)).end < start) i++;
+        int j = i;
+        while(j < ranges.size() && ((Change) ranges.get(j)).start <= end) {
+            Change c = (Change) ranges.get(j);
+            start = Math.min(start, c.start);
+            end = Math.max(end, c.end);
+            j++;
+        }
+        if(i == j) {
+            ranges.add(i, new Change(start, end, null));
+        } else {
+            Change c = (Change) ranges.get(i);
+            c.start = start;
+            c.end = end;
+            for(j--; j > i; j--) ranges.remove(j);
+        }
+    }
+
     //
     // other methods
     //
+
+    /** Returns a copy of this memory as it is now, which later changes to
+     * either do not affect. A copy of an image-backed memory reads the
+     * file but never writes it; the pages the file changes in later are
+     * saved for it by the writer first.
+     */
     public Object clone() {
         try {
             MemContents ret = (MemContents) super.clone();
             ret.listeners = new EventSourceWeakSupport();
-            ret.pages = new MemContentsSub.ContentsInterface[this.pages.length];
-            for(int i = 0; i < ret.pages.length; i++) {
-                if(this.pages[i] != null) {
-                    ret.pages[i] = (MemContentsSub.ContentsInterface) this.pages[i].clone();
+            ret.wordListeners = NO_WORD_LISTENERS;
+            ret.batchDepth = 0;
+            ret.batchWordPending = false;
+            ret.batchRanges = new ArrayList();
+            ret.batchOldValues = new ArrayList();
+            // A clone of an image-backed memory shares the mapping but is
+            // detached from the file, and has a snapshot of it, unless it
+            // can share the one this memory has.
+            if(image != null) {
+                ret.loadedPages = (BitSet) this.loadedPages.clone();
+                ret.detached = true;
+                if(snapshot == null) {
+                    ret.snapshot = new ImageSnapshot(image, pageBits, addrBits);
+                    synchronized(snapshots) {
+                        snapshots.add(new WeakReference(ret.snapshot));
+                    }
+                }
+            }
+            ret.dirtyPages = (BitSet) this.dirtyPages.clone();
+            ret.tables = new MemContentsSub.ContentsInterface[this.tables.length][];
+            for(int i = 0; i < ret.tables.length; i++) {
+                MemContentsSub.ContentsInterface[] table = this.tables[i];
+                if(table == null) continue;
+                MemContentsSub.ContentsInterface[] copy
+                    = new MemContentsSub.ContentsInterface[table.length];
+                for(int j = 0; j < table.length; j++) {
+                    if(table[j] instanceof MemContentsSub.MappedContents) {
+                        // a view of the file, which may change: the clone
+                        // loads the page again through its snapshot
+                        ret.loadedPages.clear((i << tableBits) + j);
+                        ret.pagesInUse--;
+                    } else if(table[j] != null) {
+                        // the page is copied only once either side writes to it
+                        copy[j] = table[j].share();
+                    }
                 }
+                ret.tables[i] = copy;
             }
             return ret;
         } catch(CloneNotSupportedException ex) { return this; }
@@ -95,237 +388,394 @@ class MemContents implements Cloneable, HexModel {
     public int getWidth() { return width; }
     
     public int get(long addr) {
-        int page = (int) (addr >>> PAGE_SIZE_BITS);
-        int offs = (int) (addr & PAGE_MASK);
-        if(page < 0 || page >= pages.length || pages[page] == null) return 0;
-        return pages[page].get(offs) & mask;
+        if(addr < 0 || addr >>> addrBits != 0) return 0;
+        MemContentsSub.ContentsInterface page = getPage((int) (addr >>> pageBits));
+        if(page == null) return 0;
+        return page.get((int) (addr & pageMask)) & mask;
     }
     
     public boolean isClear() {
-        for(int i = 0; i < pages.length; i++) {
-            MemContentsSub.ContentsInterface page = pages[i];
-            if(page != null) {
-                for(int j = page.getLength() - 1; j >= 0; j--) {
-                    if(page.get(j) != 0) return false;
-                }
-            }
-        }
-        return true;
+        if(image != null) loadAllPages();
+        return pagesInUse == 0;
+    }
+
+    /** Returns the number of words in each page; page i starts at address
+     * i * getPageSize().
+     */
+    int getPageSize() {
+        return pageSize;
+    }
+
+    int getPageCount() {
+        return 1 << (addrBits - pageBits);
+    }
+
+    /** Returns whether page index holds anything other than zeroes. */
+    boolean isPageInUse(int index) {
+        return getPage(index) != null;
+    }
+
+    /** Copies the words of page index into dest, which must hold at least
+     * getPageSize() values.
+     */
+    void copyPage(int index, int[] dest) {
+        MemContentsSub.ContentsInterface page = getPage(index);
+        if(page == null) Arrays.fill(dest, 0, pageSize, 0);
+        else page.copyOut(0, dest, 0, pageSize);
+    }
+
+    /** Returns a copy of the set of pages written since the last call to
+     * markClean(), so that savers and differs can visit only those.
+     */
+    BitSet getDirtyPages() {
+        return (BitSet) dirtyPages.clone();
+    }
+
+    void markClean() {
+        dirtyPages.clear();
     }
     
     public void set(long addr, int value) {
-        int page = (int) (addr >>> PAGE_SIZE_BITS);
-        int offs = (int) (addr & PAGE_MASK);
-        int old = pages[page] == null ? 0 : pages[page].get(offs) & mask;
+        int page = (int) (addr >>> pageBits);
+        int offs = (int) (addr & pageMask);
+        MemContentsSub.ContentsInterface p = getPage(page);
+        int old = p == null ? 0 : p.get(offs) & mask;
         int val = value & mask;
         if(old != val) {
-            if(pages[page] == null) {
-                pages[page] = MemContentsSub.createContents(PAGE_SIZE, width);
-            }
-            pages[page].set(offs, val);
-            fireBytesChanged(addr, 1, new int[] { old });
+            p = writablePage(page);
+            p.set(offs, val);
+            if(p.isClear()) freePage(page);
+            fireWordChanged(addr, old);
         }
     }
 
     public void set(long start, int[] values) {
-        int pageStart = (int) (start >>> PAGE_SIZE_BITS);
-        int startOffs = (int) (start & PAGE_MASK);
-        int pageEnd = (int) ((start + values.length) >>> PAGE_SIZE_BITS);
-        int endOffs = (int) ((start + values.length) & PAGE_MASK);
-
-        if(pageStart == pageEnd) {
-            ensurePage(pageStart);
-            MemContentsSub.ContentsInterface page = pages[pageStart];
-            if(!page.matches(values, startOffs, mask)) {
-                int[] oldValues = page.get(startOffs, values.length);
-                page.load(startOffs, values, mask);
-                if(page.isClear()) pages[pageStart] = null;
-                fireBytesChanged(start, values.length, oldValues);
-            }
-        } else {
-            if(startOffs == 0) {
-                pageStart--;
-                startOffs = PAGE_SIZE;
-            } else {
-                ensurePage(pageStart);
-                int[] vals = new int[PAGE_SIZE - startOffs];
-                System.arraycopy(values, 0, vals, 0, vals.length);
-                MemContentsSub.ContentsInterface page = pages[pageStart];
-                if(!page.matches(vals, startOffs, mask)) {
-                    int[] oldValues = page.get(startOffs, vals.length);
-                    page.load(startOffs, vals, mask);
-                    if(page.isClear()) pages[pageStart] = null;
-                    fireBytesChanged(start, PAGE_SIZE - pageStart, oldValues);
-                }
-            }
-            int[] vals = new int[PAGE_SIZE];
-            int offs = PAGE_SIZE - startOffs;
-            for(int i = pageStart + 1; i < pageEnd; i++, offs += PAGE_SIZE) {
-                MemContentsSub.ContentsInterface page = pages[i];
-                if(page == null) {
-                    boolean allZeroes = true;
-                    for(int j = 0; j < PAGE_SIZE; j++) {
-                        if((values[j] & mask) == 0) { allZeroes = false; break; }
-                    }
-                    if(!allZeroes) {
-                        page = MemContentsSub.createContents(PAGE_SIZE, width);
-                        pages[i] = page;
-                    }
-                }
-                if(page != null) {
-                    System.arraycopy(values, offs, vals, 0, PAGE_SIZE);
-                    if(!page.matches(vals, startOffs, mask)) {
-                        int[] oldValues = page.get(0, PAGE_SIZE);
-                        page.load(0, vals, mask);
-                        if(page.isClear()) pages[i] = null;
-                        fireBytesChanged((long) i << PAGE_SIZE_BITS, PAGE_SIZE, oldValues);
-                    }
-                }
-            }
-            if(endOffs > 0) {
-                ensurePage(pageEnd);
-                vals = new int[endOffs];
-                System.arraycopy(values, offs, vals, 0, endOffs);
-                MemContentsSub.ContentsInterface page = pages[pageEnd];
-                if(!page.matches(vals, startOffs, mask)) {
-                    int[] oldValues = page.get(0, endOffs);
-                    page.load(0, vals, mask);
-                    if(page.isClear()) pages[pageEnd] = null;
-                    fireBytesChanged((long) pageEnd << PAGE_SIZE_BITS, endOffs, oldValues);
-                }
+        beginBatch();
+        try {
+            setValues(start, values);
+        } finally {
+            endBatch();
+        }
+    }
+
+    private void setValues(long start, int[] values) {
+        int from = 0;
+        while(from < values.length) {
+            long addr = start + from;
+            int offs = (int) (addr & pageMask);
+            int len = Math.min(pageSize - offs, values.length - from);
+            storeRange((int) (addr >>> pageBits), offs, values, from, len);
+            from += len;
+        }
+    }
+
+    // Stores len values from values[from] into the page at index, starting
+    // at offset offs within the page, and reports them if anything changed.
+    private void storeRange(int index, int offs, int[] values, int from, int len) {
+        MemContentsSub.ContentsInterface page = getPage(index);
+        if(page == null) {
+            boolean allZeroes = true;
+            for(int i = 0; i < len; i++) {
+                if((values[from + i] & mask) != 0) { allZeroes = false; break; }
             }
+            if(allZeroes) return;
+        } else if(page.matches(values, from, offs, len, mask)) {
+            return;
         }
+        page = writablePage(index);
+        int[] oldValues = page.get(offs, len);
+        page.load(offs, values, from, len, mask);
+        if(page.isClear()) freePage(index);
+        fireBytesChanged(((long) index << pageBits) + offs, len, oldValues);
     }
     
     public void fill(long start, long len, int value) {
         if(len == 0) return;
-        
-        int pageStart = (int) (start >>> PAGE_SIZE_BITS);
-        int startOffs = (int) (start & PAGE_MASK);
-        int pageEnd = (int) ((start + len) >>> PAGE_SIZE_BITS);
-        int endOffs = (int) ((start + len) & PAGE_MASK);
+        beginBatch();
+        try {
+            fillValues(start, len, value);
+        } finally {
+            endBatch();
+        }
+    }
+
+    private void fillValues(long start, long len, int value) {
         value &= mask;
-        
-        if(pageStart == pageEnd) {
-            ensurePage(pageStart);
-            int[] vals = new int[(int) len];
-            Arrays.fill(vals, value);
-            MemContentsSub.ContentsInterface page = pages[pageStart];
-            if(!page.matches(vals, startOffs, mask)) {
-                int[] oldValues = page.get(startOffs, (int) len);
-                page.load(startOffs, vals, mask);
-                if(value == 0 && page.isClear()) pages[pageStart] = null;
-                fireBytesChanged(start, len, oldValues);
-            }
-        } else {
-            if(startOffs == 0) {
-                pageStart--;
-                startOffs = PAGE_SIZE;
-            } else {
-                if(value == 0 && pages[pageStart] == null) {
-                    // nothing to do
-                } else {
-                    ensurePage(pageStart);
-                    int[] vals = new int[PAGE_SIZE - startOffs];
-                    Arrays.fill(vals, value);
-                    MemContentsSub.ContentsInterface page = pages[pageStart];
-                    if(!page.matches(vals, startOffs, mask)) {
-                        int[] oldValues = page.get(startOffs, vals.length);
-                        page.load(startOffs, vals, mask);
-                        if(value == 0 && page.isClear()) pages[pageStart] = null;
-                        fireBytesChanged(start, PAGE_SIZE - pageStart, oldValues);
-                    }
-                }
-            }
-            if(value == 0) {
-                for(int i = pageStart + 1; i < pageEnd; i++) {
-                    if(pages[i] != null) clearPage(i);
-                }
-            } else {
-                int[] vals = new int[PAGE_SIZE];
-                Arrays.fill(vals, value);
-                for(int i = pageStart + 1; i < pageEnd; i++) {
-                    ensurePage(i);
-                    MemContentsSub.ContentsInterface page = pages[i];
-                    if(!page.matches(vals, startOffs, mask)) {
-                        int[] oldValues = page.get(0, PAGE_SIZE);
-                        page.load(0, vals, mask);
-                        fireBytesChanged((long) i << PAGE_SIZE_BITS, PAGE_SIZE, oldValues);
-                    }
-                }
-            }
-            if(endOffs > 0) {
-                MemContentsSub.ContentsInterface page = pages[pageEnd];
-                if(value == 0 && page == null) {
-                    // nothing to do
-                } else {
-                    ensurePage(pageEnd);
-                    int[] vals = new int[endOffs];
-                    Arrays.fill(vals, value);
-                    if(!page.matches(vals, startOffs, mask)) {
-                        int[] oldValues = page.get(0, endOffs);
-                        page.load(0, vals, mask);
-                        if(value == 0 && page.isClear()) pages[pageEnd] = null;
-                        fireBytesChanged((long) pageEnd << PAGE_SIZE_BITS, endOffs, oldValues);
-                    }
-                }
+        int[] vals = new int[(int) Math.min(len, pageSize)];
+        if(value != 0) Arrays.fill(vals, value);
+        long end = start + len;
+        long addr = start;
+        while(addr < end) {
+            int index = (int) (addr >>> pageBits);
+            int offs = (int) (addr & pageMask);
+            int n = (int) Math.min(pageSize - offs, end - addr);
+            if(value != 0) {
+                storeRange(index, offs, vals, 0, n);
+            } else if(getPage(index) != null) {
+                if(n == pageSize) clearPage(index);
+                else storeRange(index, offs, vals, 0, n);
             }
+            addr += n;
         }
     }
     
     public void clear() {
-        for(int i = 0; i < pages.length; i++) {
-            if(pages[i] != null) {
-                if(pages[i] != null) clearPage(i);
+        beginBatch();
+        try {
+            if(image != null) loadAllPages();
+            for(int t = 0; t < tables.length; t++) {
+                MemContentsSub.ContentsInterface[] table = tables[t];
+                if(table == null) continue;
+                for(int i = 0; i < table.length; i++) {
+                    if(table[i] != null) clearPage((t << tableBits) + i);
+                }
             }
+        } finally {
+            endBatch();
         }
     }
     
     private void clearPage(int index) {
-        MemContentsSub.ContentsInterface page = pages[index];
-        int[] oldValues = new int[page.getLength()];
-        boolean changed = false;
-        for(int j = 0; j < oldValues.length; j++) {
-            int val = page.get(j) & mask;
-            oldValues[j] = val;
-            if(val != 0) changed = true;
-        }
-        if(changed) {
-            pages[index] = null;
-            fireBytesChanged(index << PAGE_SIZE_BITS, oldValues.length, oldValues);
+        MemContentsSub.ContentsInterface page = getPage(index);
+        if(page.isClear()) {
+            freePage(index);
+        } else {
+            int[] oldValues = page.get(0, page.getLength());
+            freePage(index);
+            fireBytesChanged((long) index << pageBits, oldValues.length, oldValues);
         }
     }
     
     public void setDimensions(int addrBits, int width) {
         if(addrBits == this.addrBits && width == this.width) return;
+        if(snapshot != null) {
+            // a clone keeps what it holds on the heap, and lets go of the
+            // file, the layout of which no longer matches its own
+            loadAllPages();
+            forgetImage();
+        }
+        File file = imageFile;
+        boolean writer = !detached;
+        if(file != null) {
+            // the data stays in the file, to be mapped again below
+            closeImage();
+        }
+        MemContentsSub.ContentsInterface[][] oldTables = tables;
+        int oldPageBits = pageBits;
+        int oldTableBits = tableBits;
+
         this.addrBits = addrBits;
         this.width = width;
         this.mask = width == 32 ? 0xffffffff : ((1 << width) - 1);
-        
-        MemContentsSub.ContentsInterface[] oldPages = pages;
-        int pageCount;
-        int pageLength;
-        if(addrBits < PAGE_SIZE_BITS) { pageCount = 1; pageLength = 1 << addrBits; }
-        else { pageCount = 1 << (addrBits - PAGE_SIZE_BITS); pageLength = PAGE_SIZE; }
-        pages = new MemContentsSub.ContentsInterface[pageCount];
-        if(oldPages != null) {
-            int n = Math.min(oldPages.length, pages.length);
-            for(int i = 0; i < n; i++) {
-                if(oldPages[i] != null) {
-                    pages[i] = MemContentsSub.createContents(pageLength, width);
-                    int m = Math.max(oldPages[i].getLength(), pageLength);
-                    for(int j = 0; j < m; j++) {
-                        pages[i].set(j, oldPages[i].get(j));
+        if(addrBits < SMALL_PAGE_BITS) pageBits = addrBits;
+        else if(addrBits < LARGE_PAGE_MIN_ADDR_BITS) pageBits = SMALL_PAGE_BITS;
+        else pageBits = LARGE_PAGE_BITS;
+        pageSize = 1 << pageBits;
+        pageMask = pageSize - 1;
+        int pageCount = 1 << (addrBits - pageBits);
+        tableBits = Math.min(addrBits - pageBits, TABLE_BITS);
+        tableMask = (1 << tableBits) - 1;
+        tables = new MemContentsSub.ContentsInterface[pageCount >>> tableBits][];
+        pagesInUse = 0;
+        dirtyPages = new BitSet();
+
+        if(oldTables != null) {
+            // copy whatever still fits into the new layout
+            long size = 1L << addrBits;
+            for(int t = 0; t < oldTables.length; t++) {
+                MemContentsSub.ContentsInterface[] table = oldTables[t];
+                if(table == null) continue;
+                for(int i = 0; i < table.length; i++) {
+                    MemContentsSub.ContentsInterface page = table[i];
+                    if(page == null) continue;
+                    long base = (long) ((t << oldTableBits) + i) << oldPageBits;
+                    for(int j = 0; j < page.getLength() && base + j < size; j++) {
+                        int val = page.get(j) & mask;
+                        if(val != 0) {
+                            ensurePage((int) ((base + j) >>> pageBits))
+                                .set((int) ((base + j) & pageMask), val);
+                        }
                     }
+                    page.release();
                 }
             }
         }
-        if(pageCount == 0 && pages[0] == null) {
-            pages[0] = MemContentsSub.createContents(pageLength, width);
+        if(file != null) {
+            try {
+                openImage(file, writer);
+            } catch(IOException e) {
+                // carry on as an empty memory held on the heap
+            }
         }
         fireMetainfoChanged();
     }
 
+    /** Backs this memory with an image file holding one big-endian 32-bit
+     * word per address, or with the heap again if file is null. The
+     * current contents are dropped in favour of the file's, which are read
+     * a page at a time as they are first used and written back in place.
+     * A memory that was writing to the same file is detached from it.
+     */
+    void setImageFile(File file) throws IOException {
+        if(file == null ? imageFile == null : file.equals(imageFile)) return;
+        closeImage();
+        for(int t = 0; t < tables.length; t++) {
+            MemContentsSub.ContentsInterface[] table = tables[t];
+            if(table == null) continue;
+            for(int i = 0; i < table.length; i++) {
+                if(table[i] != null) table[i].release();
+            }
+        }
+        tables = new MemContentsSub.ContentsInterface[tables.length][];
+        pagesInUse = 0;
+        dirtyPages = new BitSet();
+        try {
+            if(file != null) openImage(file, true);
+        } finally {
+            fireMetainfoChanged();
+        }
+    }
+
+    File getImageFile() {
+        return imageFile;
+    }
+
+    /** Whether this memory writes to its image file, rather than being
+     * detached from it.
+     */
+    boolean isImageWriter() {
+        return image != null && !detached;
+    }
+
+    /** Makes sure every write to the image file has reached the disk. */
+    void flushImage() {
+        if(!isImageWriter()) return;
+        for(int i = 0; i < image.length; i++) image[i].force();
+    }
+
+    /** Opens file for reading and writing and closes it again, so that
+     * an image that cannot be used is reported before it is mapped.
+     */
+    static void checkImageFile(File file) throws IOException {
+        new RandomAccessFile(file, "rw").close();
+    }
+
+    // Maps all of file; the channel is not needed once it is mapped.
+    private void openImage(File file, boolean writer) throws IOException {
+        long length = 4L << addrBits;
+        long regionSize = 4L << Math.min(addrBits, REGION_BITS);
+        MappedByteBuffer[] regions = new MappedByteBuffer[(int) (length / regionSize)];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if(raf.length() < length) raf.setLength(length);
+            FileChannel channel = raf.getChannel();
+            for(int i = 0; i < regions.length; i++) {
+                regions[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        i * regionSize, regionSize);
+            }
+        } finally {
+            raf.close();
+        }
+        image = regions;
+        imageFile = file;
+        loadedPages = new BitSet();
+        detached = !writer;
+        Object key = file.getCanonicalPath();
+        synchronized(imageSnapshots) {
+            snapshots = (ArrayList) imageSnapshots.get(key);
+            if(snapshots == null) {
+                snapshots = new ArrayList();
+                imageSnapshots.put(key, snapshots);
+            }
+        }
+        if(writer) {
+            synchronized(imageWriters) {
+                WeakReference ref = (WeakReference) imageWriters.get(key);
+                MemContents old = ref == null ? null : (MemContents) ref.get();
+                if(old != null && old != this) old.detached = true;
+                imageWriters.put(key, new WeakReference(this));
+            }
+        }
+    }
+
+    private void closeImage() {
+        if(image == null) return;
+        flushImage();
+        // The mapping stays valid until it is collected, but its pages are
+        // dropped so that nothing writes to a file no longer in use.
+        for(int t = 0; t < tables.length; t++) {
+            tables[t] = null;
+        }
+        pagesInUse = 0;
+        synchronized(imageWriters) {
+            try {
+                Object key = imageFile.getCanonicalPath();
+                WeakReference ref = (WeakReference) imageWriters.get(key);
+                if(ref != null && ref.get() == this) imageWriters.remove(key);
+            } catch(IOException e) { }
+        }
+        forgetImage();
+    }
+
+    private void forgetImage() {
+        image = null;
+        imageFile = null;
+        loadedPages = null;
+        detached = false;
+        snapshots = null;
+        snapshot = null;
+    }
+
+    private MemContentsSub.ContentsInterface mapPage(int index) {
+        return mapPage(image, pageBits, index);
+    }
+
+    private static MemContentsSub.ContentsInterface mapPage(MappedByteBuffer[] image,
+            int pageBits, int index) {
+        long addr = (long) index << pageBits;
+        ByteBuffer region = image[(int) (addr >>> REGION_BITS)].duplicate();
+        int offs = (int) ((addr & ((1L << REGION_BITS) - 1)) << 2);
+        region.position(offs);
+        region.limit(offs + (4 << pageBits));
+        return new MemContentsSub.MappedContents(region.slice());
+    }
+
+    // Maps a page of the image file that has not been looked at yet,
+    // keeping it only if it holds something. A clone takes a heap copy of
+    // the page as it was when the snapshot was taken.
+    private MemContentsSub.ContentsInterface loadPage(int index) {
+        loadedPages.set(index);
+        MemContentsSub.ContentsInterface page;
+        if(snapshot == null) {
+            page = mapPage(index);
+        } else {
+            synchronized(snapshots) {
+                if(snapshot.saved.get(index)) {
+                    page = (MemContentsSub.ContentsInterface)
+                        snapshot.pages.get(Integer.valueOf(index));
+                    if(page != null) page = page.share();
+                } else {
+                    page = mapPage(index);
+                    if(!page.isClear()) page = (MemContentsSub.ContentsInterface) page.clone();
+                }
+            }
+            if(page == null) return null;
+        }
+        if(page.isClear()) return null;
+        boolean dirty = dirtyPages.get(index);
+        putPage(index, page);
+        if(!dirty) dirtyPages.clear(index); // it still matches the file
+        return page;
+    }
+
+    private void loadAllPages() {
+        int pageCount = 1 << (addrBits - pageBits);
+        for(int i = loadedPages.nextClearBit(0); i < pageCount;
+                i = loadedPages.nextClearBit(i + 1)) {
+            loadPage(i);
+        }
+    }
+
     public long getFirstOffset() {
         return 0;
     }
@@ -338,9 +788,94 @@ class MemContents implements Cloneable, HexModel {
         return width;
     }
     
-    private void ensurePage(int index) {
-        if(pages[index] == null) {
-            pages[index] = MemContentsSub.createContents(PAGE_SIZE, width);
+    private MemContentsSub.ContentsInterface getPage(int index) {
+        MemContentsSub.ContentsInterface[] table = tables[index >>> tableBits];
+        MemContentsSub.ContentsInterface page
+            = table == null ? null : table[index & tableMask];
+        if(page == null && image != null && !loadedPages.get(index)) {
+            page = loadPage(index);
+        }
+        return page;
+    }
+
+    private void putPage(int index, MemContentsSub.ContentsInterface page) {
+        MemContentsSub.ContentsInterface[] table = tables[index >>> tableBits];
+        if(table == null) {
+            if(page == null) return;
+            table = new MemContentsSub.ContentsInterface[1 << tableBits];
+            tables[index >>> tableBits] = table;
+        }
+        MemContentsSub.ContentsInterface old = table[index & tableMask];
+        if(old == null && page != null) pagesInUse++;
+        else if(old != null && page == null) pagesInUse--;
+        table[index & tableMask] = page;
+        dirtyPages.set(index);
+    }
+
+    private MemContentsSub.ContentsInterface ensurePage(int index) {
+        MemContentsSub.ContentsInterface page = getPage(index);
+        if(page == null) {
+            page = MemContentsSub.createContents(pageSize, width);
+            putPage(index, page);
+        }
+        return page;
+    }
+
+    // Returns a page that may be modified, copying it first if it is
+    // still shared with a clone of this object.
+    private MemContentsSub.ContentsInterface writablePage(int index) {
+        MemContentsSub.ContentsInterface page = getPage(index);
+        if(page == null) {
+            if(image != null && !detached) {
+                saveForSnapshots(index);
+                page = mapPage(index);
+            } else {
+                page = MemContentsSub.createContents(pageSize, width);
+            }
+            putPage(index, page);
+        } else if(page instanceof MemContentsSub.MappedContents) {
+            // a writer writes the file in place, once the snapshots have
+            // the page; a detached memory copies the page first
+            if(detached) {
+                page.release();
+                page = (MemContentsSub.ContentsInterface) page.clone();
+                putPage(index, page);
+            } else {
+                saveForSnapshots(index);
+            }
+        } else if(page.isShared()) {
+            page.release();
+            page = (MemContentsSub.ContentsInterface) page.clone();
+            putPage(index, page);
+        }
+        dirtyPages.set(index);
+        return page;
+    }
+
+    private void freePage(int index) {
+        MemContentsSub.ContentsInterface page = getPage(index);
+        if(page != null) {
+            // the file must read back as zeroes once the page is gone
+            if(page instanceof MemContentsSub.MappedContents && !detached) {
+                saveForSnapshots(index);
+                page.clear();
+            }
+            page.release();
+            putPage(index, null);
+        }
+    }
+
+    // Saves page index of the image file into the snapshots of it that do
+    // not have it yet, before this memory, its writer, changes the page.
+    private void saveForSnapshots(int index) {
+        synchronized(snapshots) {
+            if(snapshots.isEmpty()) return;
+            long start = (long) index << pageBits;
+            for(Iterator it = snapshots.iterator(); it.hasNext(); ) {
+                ImageSnapshot snap = (ImageSnapshot) ((WeakReference) it.next()).get();
+                if(snap == null) it.remove();
+                else snap.save(start, start + pageSize);
+            }
         }
     }
 }
@@ -6,6 +6,8 @@ package dk.diku.logisim;
 
 import com.cburch.logisim.std.memory.*;
 
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.Arrays;
 
 class MemContentsSub {
@@ -18,38 +20,59 @@ class MemContentsSub {
     }
     
     static abstract class ContentsInterface implements Cloneable {
+        // number of MemContents objects referring to this page; a page
+        // referred to by more than one must be copied before it is modified
+        private int refs = 1;
+        // number of words in this page that are not zero
+        int nonZero = 0;
+
         public Object clone() {
             try {
-                return super.clone();
+                ContentsInterface ret = (ContentsInterface) super.clone();
+                ret.refs = 1;
+                return ret;
             } catch(CloneNotSupportedException e) {
                 return this;
             }
         }
+
+        synchronized ContentsInterface share() {
+            refs++;
+            return this;
+        }
+
+        synchronized void release() {
+            if(refs > 0) refs--;
+        }
+
+        synchronized boolean isShared() {
+            return refs > 1;
+        }
+
         abstract int getLength();
         abstract int get(int addr);
         abstract void set(int addr, int value);
         abstract void clear();
-        abstract void load(int start, int[] values, int mask);
 
-        boolean matches(int[] values, int start, int mask) {
-            for(int i = 0; i < values.length; i++) {
-                if(get(start + i) != (values[i] & mask)) return false;
-            }
-            return true;
+        // Copies len values starting at values[from] into this page at start.
+        abstract void load(int start, int[] values, int from, int len, int mask);
+
+        // Whether the len values starting at values[from], masked, are
+        // already stored in this page at start.
+        abstract boolean matches(int[] values, int from, int start, int len, int mask);
+
+        // Copies len values stored at start into dest[destPos].
+        abstract void copyOut(int start, int[] dest, int destPos, int len);
+
+        boolean isClear() {
+            return nonZero == 0;
         }
-        
+
         int[] get(int start, int len) {
             int[] ret = new int[len];
-            for(int i = 0; i < ret.length; i++) ret[i] = get(start + i);
+            copyOut(start, ret, 0, len);
             return ret;
         }
-        
-        boolean isClear() {
-            for(int i = 0, n = getLength(); i < n; i++) {
-                if(get(i) != 0) return false;
-            }
-            return true;
-        }
     }
     
     private static class ByteContents extends ContentsInterface {
@@ -74,28 +97,47 @@ class MemContentsSub {
         }
         
         int get(int addr) {
-            return addr >= 0 && addr < data.length ? data[addr] : 0;
+            return addr >= 0 && addr < data.length ? data[addr] & 0xff : 0;
         }
         
         void set(int addr, int value) {
             if(addr >= 0 && addr < data.length) {
-                byte oldValue = data[addr];
-                if(value != oldValue) {
-                    data[addr] = (byte) value;
-                }
+                byte old = data[addr];
+                data[addr] = (byte) value;
+                if(old == 0) { if(data[addr] != 0) nonZero++; }
+                else if(data[addr] == 0) nonZero--;
             }
         }
     
         void clear() {
             Arrays.fill(data, (byte) 0);
+            nonZero = 0;
         }
     
-        void load(int start, int[] values, int mask) {
-            int n = Math.min(values.length, data.length - start);
-            for(int i = 0; i < n; i++) {
-                data[start + i] = (byte) (values[i] & mask);
+        void load(int start, int[] values, int from, int len, int mask) {
+            int count = nonZero;
+            for(int i = 0; i < len; i++) {
+                if(data[start + i] != 0) count--;
+                byte val = (byte) (values[from + i] & mask);
+                if(val != 0) count++;
+                data[start + i] = val;
+            }
+            nonZero = count;
+        }
+
+        boolean matches(int[] values, int from, int start, int len, int mask) {
+            for(int i = 0; i < len; i++) {
+                if((data[start + i] & 0xff) != (values[from + i] & mask)) return false;
             }
+            return true;
         }
+
+        void copyOut(int start, int[] dest, int destPos, int len) {
+            for(int i = 0; i < len; i++) {
+                dest[destPos + i] = data[start + i] & 0xff;
+            }
+        }
+
     }
 
     private static class ShortContents extends ContentsInterface {
@@ -120,28 +162,47 @@ class MemContentsSub {
         }
         
         int get(int addr) {
-            return addr >= 0 && addr < data.length ? data[addr] : 0;
+            return addr >= 0 && addr < data.length ? data[addr] & 0xffff : 0;
         }
         
         void set(int addr, int value) {
             if(addr >= 0 && addr < data.length) {
-                short oldValue = data[addr];
-                if(value != oldValue) {
-                    data[addr] = (short) value;
-                }
+                short old = data[addr];
+                data[addr] = (short) value;
+                if(old == 0) { if(data[addr] != 0) nonZero++; }
+                else if(data[addr] == 0) nonZero--;
             }
         }
     
         void clear() {
             Arrays.fill(data, (short) 0);
+            nonZero = 0;
         }
     
-        void load(int start, int[] values, int mask) {
-            int n = Math.min(values.length, data.length - start);
-            for(int i = 0; i < n; i++) {
-                data[start + i] = (short) (values[i] & mask);
+        void load(int start, int[] values, int from, int len, int mask) {
+            int count = nonZero;
+            for(int i = 0; i < len; i++) {
+                if(data[start + i] != 0) count--;
+                short val = (short) (values[from + i] & mask);
+                if(val != 0) count++;
+                data[start + i] = val;
+            }
+            nonZero = count;
+        }
+
+        boolean matches(int[] values, int from, int start, int len, int mask) {
+            for(int i = 0; i < len; i++) {
+                if((data[start + i] & 0xffff) != (values[from + i] & mask)) return false;
             }
+            return true;
         }
+
+        void copyOut(int start, int[] dest, int destPos, int len) {
+            for(int i = 0; i < len; i++) {
+                dest[destPos + i] = data[start + i] & 0xffff;
+            }
+        }
+
     }
     
     private static class IntContents extends ContentsInterface {
@@ -171,22 +232,112 @@ class MemContentsSub {
         
         void set(int addr, int value) {
             if(addr >= 0 && addr < data.length) {
-                int oldValue = data[addr];
-                if(value != oldValue) {
-                    data[addr] = value;
-                }
+                int old = data[addr];
+                data[addr] = value;
+                if(old == 0) { if(value != 0) nonZero++; }
+                else if(value == 0) nonZero--;
             }
         }
     
         void clear() {
             Arrays.fill(data, 0);
+            nonZero = 0;
         }
     
-        void load(int start, int[] values, int mask) {
-            int n = Math.min(values.length, data.length - start);
-            for(int i = 0; i < n; i++) {
-                data[i] = values[i] & mask;
+        void load(int start, int[] values, int from, int len, int mask) {
+            int count = nonZero;
+            for(int i = 0; i < len; i++) {
+                if(data[start + i] != 0) count--;
+                if((values[from + i] & mask) != 0) count++;
+            }
+            if(mask == -1) {
+                System.arraycopy(values, from, data, start, len);
+            } else {
+                for(int i = 0; i < len; i++) {
+                    data[start + i] = values[from + i] & mask;
+                }
+            }
+            nonZero = count;
+        }
+
+        boolean matches(int[] values, int from, int start, int len, int mask) {
+            for(int i = 0; i < len; i++) {
+                if(data[start + i] != (values[from + i] & mask)) return false;
             }
+            return true;
+        }
+
+        void copyOut(int start, int[] dest, int destPos, int len) {
+            System.arraycopy(data, start, dest, destPos, len);
+        }
+
+    }
+
+    // A page living in a region of a memory-mapped image file; writes go
+    // straight to the file. Copies of it are ordinary heap pages.
+    static class MappedContents extends ContentsInterface {
+        private IntBuffer data;
+
+        MappedContents(ByteBuffer buffer) {
+            this.data = buffer.asIntBuffer();
+            int count = 0;
+            for(int i = 0; i < data.limit(); i++) {
+                if(data.get(i) != 0) count++;
+            }
+            nonZero = count;
+        }
+
+        public Object clone() {
+            IntContents ret = new IntContents(data.limit());
+            copyOut(0, ret.data, 0, data.limit());
+            ret.nonZero = nonZero;
+            return ret;
+        }
+
+        int getLength() {
+            return data.limit();
+        }
+
+        int get(int addr) {
+            return addr >= 0 && addr < data.limit() ? data.get(addr) : 0;
+        }
+
+        void set(int addr, int value) {
+            if(addr >= 0 && addr < data.limit()) {
+                int old = data.get(addr);
+                data.put(addr, value);
+                if(old == 0) { if(value != 0) nonZero++; }
+                else if(value == 0) nonZero--;
+            }
+        }
+
+        void clear() {
+            for(int i = 0; i < data.limit(); i++) data.put(i, 0);
+            nonZero = 0;
+        }
+
+        void load(int start, int[] values, int from, int len, int mask) {
+            int count = nonZero;
+            for(int i = 0; i < len; i++) {
+                int val = values[from + i] & mask;
+                if(data.get(start + i) != 0) count--;
+                if(val != 0) count++;
+                data.put(start + i, val);
+            }
+            nonZero = count;
+        }
+
+        boolean matches(int[] values, int from, int start, int len, int mask) {
+            for(int i = 0; i < len; i++) {
+                if(data.get(start + i) != (values[from + i] & mask)) return false;
+            }
+            return true;
+        }
+
+        void copyOut(int start, int[] dest, int destPos, int len) {
+            IntBuffer src = data.duplicate();
+            src.position(start);
+            src.get(dest, destPos, len);
         }
     }
 }
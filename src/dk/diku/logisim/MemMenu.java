@@ -33,6 +33,8 @@ class MemMenu implements ActionListener, MenuExtender {
     private JMenuItem clear;
     private JMenuItem load;
     private JMenuItem save;
+    private JMenuItem loadBinary;
+    private JMenuItem saveBinary;
 
     MemMenu(Mem factory, Instance instance) {
         this.factory = factory;
@@ -54,12 +56,16 @@ class MemMenu implements ActionListener, MenuExtender {
         clear = createItem(enabled, "Clear Contents");
         load = createItem(enabled, "Load Image...");
         save = createItem(enabled, "Save Image...");
+        loadBinary = createItem(enabled, "Load Binary Image...");
+        saveBinary = createItem(enabled, "Save Binary Image...");
 
         menu.addSeparator();
         menu.add(edit);
         menu.add(clear);
         menu.add(load);
         menu.add(save);
+        menu.add(loadBinary);
+        menu.add(saveBinary);
     }
 
     private JMenuItem createItem(boolean enabled, String label) {
@@ -75,11 +81,25 @@ class MemMenu implements ActionListener, MenuExtender {
         else if(src == clear) doClear();
         else if(src == load) doLoad();
         else if(src == save) doSave();
+        else if(src == loadBinary) doLoadBinary();
+        else if(src == saveBinary) doSaveBinary();
+    }
+
+    // Tells the user if the memory's image file could not be mapped, in
+    // which case it is an ordinary memory.
+    private void reportImageError() {
+        if(!(factory instanceof Ram)) return;
+        String error = ((Ram) factory).getImageError(instance, circState);
+        if(error != null) {
+            JOptionPane.showMessageDialog(frame, error, "RAM Image Error",
+                    JOptionPane.ERROR_MESSAGE);
+        }
     }
 
     private void doEdit() {
         MemState s = factory.getState(instance, circState);
         if(s == null) return;
+        reportImageError();
         HexFrame frame = factory.getHexFrame(proj, instance, circState);
         frame.setVisible(true);
         frame.toFront();
@@ -109,18 +129,28 @@ class MemMenu implements ActionListener, MenuExtender {
         int choice = chooser.showOpenDialog(frame);
         if(choice == JFileChooser.APPROVE_OPTION) {
             File f = chooser.getSelectedFile();
+            MemContents contents = s.getContents();
+            contents.beginBatch(); // repaint once, not once per page loaded
             try {
-                HexFile.open(s.getContents(), f);
+                HexFile.open(contents, f);
                 factory.setCurrentImage(instance, f);
             } catch(IOException e) {
                 JOptionPane.showMessageDialog(frame, e.getMessage(),
                         "Load Error", JOptionPane.ERROR_MESSAGE);
+            } finally {
+                contents.endBatch();
             }
         }
     }
 
     private void doSave() {
         MemState s = factory.getState(instance, circState);
+        if(s.getContents().isImageWriter()) {
+            // a mapped memory is its own image; just make sure it is on disk
+            s.getContents().flushImage();
+            return;
+        }
+        reportImageError();
 
         JFileChooser chooser = proj.createChooser();
         File oldSelected = factory.getCurrentImage(instance);
@@ -138,4 +168,44 @@ class MemMenu implements ActionListener, MenuExtender {
             }
         }
     }
+
+    private void doLoadBinary() {
+        MemState s = factory.getState(instance, circState);
+
+        JFileChooser chooser = proj.createChooser();
+        File oldSelected = factory.getCurrentImage(instance);
+        if(oldSelected != null) chooser.setSelectedFile(oldSelected);
+        chooser.setDialogTitle("Load Binary RAM Image");
+        int choice = chooser.showOpenDialog(frame);
+        if(choice == JFileChooser.APPROVE_OPTION) {
+            File f = chooser.getSelectedFile();
+            try {
+                BinaryImageFile.open(s.getContents(), f);
+                factory.setCurrentImage(instance, f);
+            } catch(IOException e) {
+                JOptionPane.showMessageDialog(frame, e.getMessage(),
+                        "Load Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    private void doSaveBinary() {
+        MemState s = factory.getState(instance, circState);
+
+        JFileChooser chooser = proj.createChooser();
+        File oldSelected = factory.getCurrentImage(instance);
+        if(oldSelected != null) chooser.setSelectedFile(oldSelected);
+        chooser.setDialogTitle("Save Binary RAM Image");
+        int choice = chooser.showSaveDialog(frame);
+        if(choice == JFileChooser.APPROVE_OPTION) {
+            File f = chooser.getSelectedFile();
+            try {
+                BinaryImageFile.save(f, s.getContents());
+                factory.setCurrentImage(instance, f);
+            } catch(IOException e) {
+                JOptionPane.showMessageDialog(frame, e.getMessage(),
+                    "Save Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
 }
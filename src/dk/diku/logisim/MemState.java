@@ -17,7 +17,7 @@ import com.cburch.logisim.util.StringUtil;
 
 import com.cburch.logisim.std.memory.*;
 
-class MemState implements InstanceData, Cloneable, HexModelListener {
+class MemState implements InstanceData, Cloneable, MemContents.WordListener {
     private static final int ROWS = 8; // rows in memory display
 
     private static final int TABLE_WIDTH12 = 65; //80; // width of table for addr bits <= 12
@@ -157,6 +157,12 @@ class MemState implements InstanceData, Cloneable, HexModelListener {
         }
     }
 
+    // whether addr is within the rows currently shown in the memory box
+    boolean isVisible(long addr) {
+        long top = curScroll / columns * columns;
+        return addr >= top && addr < top + ROWS * columns;
+    }
+
     void setScroll(long addr) {
         long maxAddr = getLastAddress() - ROWS * columns;
         if(addr > maxAddr) addr = maxAddr; // note: maxAddr could be negative
@@ -282,4 +288,6 @@ class MemState implements InstanceData, Cloneable, HexModelListener {
     }
 
     public void bytesChanged(HexModel source, long start, long numBytes, int[] oldValues) { }
+
+    public void wordChanged(HexModel source, long addr, int oldValue) { }
 }
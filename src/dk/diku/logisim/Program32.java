@@ -1,8 +1,10 @@
 package dk.diku.logisim;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import java.awt.Color;
 import java.awt.Graphics;
@@ -18,6 +20,7 @@ import javax.swing.JOptionPane;
 import com.cburch.logisim.gui.main.Canvas;
 import com.cburch.logisim.proj.Project;
 import com.cburch.logisim.comp.ComponentDrawContext;
+import com.cburch.logisim.circuit.Circuit;
 import com.cburch.logisim.circuit.CircuitState;
 import com.cburch.logisim.comp.ComponentState;
 import com.cburch.logisim.data.Value;
@@ -42,6 +45,7 @@ import com.cburch.logisim.tools.AbstractCaret;
 import com.cburch.logisim.tools.Caret;
 import com.cburch.logisim.tools.Pokable;
 import com.cburch.logisim.gui.main.Frame;
+import com.cburch.logisim.instance.Instance;
 
 /** Represents a program ROM.
  */
@@ -60,6 +64,9 @@ class Program32 extends ManagedComponent {
 
 	static final BitWidth PC_WIDTH = BitWidth.create(32);
 	static final BitWidth OP_WIDTH = BitWidth.create(32);
+	// what the instruction output shows with no instruction, or a bad pc
+	static final Value NOP_VALUE = Value.createKnown(OP_WIDTH, NO_OP);
+	static final Value ERROR_OP = Value.createError(OP_WIDTH);
 
 	static final int BOX_WIDTH = 196;
 	static final int ACOL_WIDTH = 54;
@@ -72,6 +79,21 @@ class Program32 extends ManagedComponent {
 	    else return "0x00000000".substring(0, 2+digits-s.length()) + s;
 	}
 
+	private static final char HEX_DIGITS[] = "0123456789abcdef".toCharArray();
+
+	// appends toHex(i, digits) to out
+	static void appendHex(StringBuilder out, int i, int digits) {
+	    if (digits > 8) digits = 8;
+	    int n = Math.max(1, (35 - Integer.numberOfLeadingZeros(i)) >> 2);
+	    if (n > digits) digits = n;
+	    char buf[] = new char[2 + digits];
+	    buf[0] = '0';
+	    buf[1] = 'x';
+	    for (int k = buf.length - 1; k >= 2; k--, i >>>= 4)
+		buf[k] = HEX_DIGITS[i & 0xf];
+	    out.append(buf);
+	}
+
 	// singleton: factory creates sets of attributes (containing code) , then components out of them
     protected static class ProgramFactory extends AbstractComponentFactory {
 		int W, D;
@@ -126,7 +148,7 @@ class Program32 extends ManagedComponent {
 			}
 			public Object parse(String value) {
 				try {
-					return new Listing(value);
+					return Listing.cached(value);
 				} catch(IOException e) {
 					// too bad this will be in back of the splash
 					JOptionPane.showMessageDialog(null, "The contents of the Program chip could not be read: " +
@@ -240,39 +262,170 @@ class Program32 extends ManagedComponent {
     public ComponentFactory getFactory() { return factory; }
 
     public static void main(String args[]) {
-	if (args.length != 1) {
-	    System.err.println("usage: Program32 <mips-asm-file>");
-	    System.exit(1);
-	}
-	Listing code = new Listing();
-	try {
-	    code.load(new File(args[0]));
-	    for (int s = 0; s < code.seg.length; s++) {
-		for (int i = 0; i < code.seg[s].data.length; i++) {
-		    int pc = code.seg[s].start_pc + i;
-		    int instr = code.instr(pc);
-		    System.out.println(toHex(pc*4, 8)+" : " + toHex(instr, 8) + " : " + disassemble(instr, pc*4));
-		}
-		System.out.println();
-	    }
-	} catch (IOException e) {
-	    e.printStackTrace();
-	}
+	System.exit(BatchAssembler.run(args));
     }
 
 	public static class Segment implements Cloneable {
 		public int start_pc;
 		public int data[];
-		public Segment(int pc, int d[]) { start_pc = pc; data = d; }
+		public int line[]; // source line of each word
+		// Disassembly, address and binary text of each word. A Segment is
+		// never changed once assembled, so each is rendered once, on first
+		// use, and dropped along with the Segment when the source changes.
+		private String text[], addr_text[], bin_text[];
+		private Value value[]; // and each word as a Value, made together
+		public Segment(int pc, int d[]) { start_pc = pc; data = d; line = new int[d.length]; }
+
+		Value value(int i) {
+		    if (value == null) {
+			Value v[] = new Value[data.length];
+			for (int k = 0; k < v.length; k++)
+			    v[k] = k > 0 && data[k] == data[k-1] ? v[k-1] : Value.createKnown(OP_WIDTH, data[k]);
+			value = v;
+		    }
+		    return value[i];
+		}
+
+		String text(int i) {
+		    if (text == null) text = new String[data.length];
+		    String t = text[i];
+		    if (t == null) text[i] = t = disassemble(data[i], (start_pc + i) * 4);
+		    return t;
+		}
+
+		String addrText(int i) {
+		    if (addr_text == null) addr_text = new String[data.length];
+		    String t = addr_text[i];
+		    if (t == null) addr_text[i] = t = StringUtil.toHexString(32, (start_pc + i) * 4);
+		    return t;
+		}
+
+		String binText(int i) {
+		    if (bin_text == null) bin_text = new String[data.length];
+		    String t = bin_text[i];
+		    if (t == null) bin_text[i] = t = StringUtil.toHexString(32, data[i]);
+		    return t;
+		}
 	}
 
 	static class Listing implements Cloneable {
 		public String src;
 		public Segment seg[];
+		public Segment data_seg[]; // the data section, by word address
 		public State state;
-		public ArrayList src_lines, addr_map;
+		public ArrayList src_lines;
+		public int addr_map[]; // address of each source line, or NO_ADDRESS
+
+		// Index for segmentOf() and instrValue(), rebuilt whenever seg
+		// changes. It is made where the code is edited and read by the
+		// simulator, so it is published whole through this field, and
+		// each lookup reads the field once.
+		private volatile Index index;
+
+		static final int MAX_DIRECT = 1 << 20;
+
+		// The segments of one assembly, kept sorted by start_pc. Programs
+		// whose segments cover most of their address span get a direct
+		// map from pc to segment, others are binary searched.
+		static final class Index {
+			final Segment seg[];
+			final int seg_start[];
+			final Segment direct[];
+			final int direct_base;
+			// the segment found last, tried first; racing lookups may
+			// overwrite each other, but it is always one of seg
+			private Segment last_seg;
+			// the words as Values, made on the first fetch
+			private volatile Fetch fetch;
+
+			Index(Segment seg[]) {
+				int starts[] = new int[seg.length];
+				long words = 0;
+				for (int s = 0; s < seg.length; s++) {
+				    starts[s] = seg[s].start_pc;
+				    words += seg[s].data.length;
+				}
+				Segment map[] = null;
+				int base = 0;
+				if (seg.length > 1) {
+				    Segment end = seg[seg.length-1];
+				    long span = (long)end.start_pc + end.data.length - seg[0].start_pc;
+				    if (span <= MAX_DIRECT && span <= 2 * words) {
+					base = seg[0].start_pc;
+					map = new Segment[(int)span];
+					for (int s = 0; s < seg.length; s++)
+					    Arrays.fill(map, seg[s].start_pc - base,
+						    seg[s].start_pc - base + seg[s].data.length, seg[s]);
+				    }
+				}
+				this.seg = seg;
+				seg_start = starts;
+				direct = map;
+				direct_base = base;
+			}
 
-		public Listing() { src = ""; seg = new Segment[0]; addr_map = new ArrayList(); src_lines = new ArrayList(); }
+			Segment segmentOf(int i) {
+				Segment s = last_seg;
+				if (s != null && i >= s.start_pc && i - s.start_pc < s.data.length)
+				    return s;
+				s = null;
+				if (direct != null) {
+				    int d = i - direct_base;
+				    s = (d >= 0 && d < direct.length) ? direct[d] : null;
+				} else {
+				    // find the last segment starting at or before i
+				    int lo = 0, hi = seg_start.length - 1;
+				    while (lo <= hi) {
+					int mid = (lo + hi) >>> 1;
+					if (seg_start[mid] <= i) lo = mid + 1;
+					else hi = mid - 1;
+				    }
+				    if (hi >= 0 && i - seg[hi].start_pc < seg[hi].data.length)
+					s = seg[hi];
+				}
+				if (s != null)
+				    last_seg = s;
+				return s;
+			}
+
+			Fetch fetch() {
+				Fetch f = fetch;
+				if (f == null)
+				    fetch = f = new Fetch(seg);
+				return f;
+			}
+		}
+
+		// The word at each pc as a Value, over the same span as a direct
+		// map, or empty if the segments do not cover enough of theirs; then
+		// Segment.value makes them per segment.
+		static final class Fetch {
+			final Value map[];
+			final int base;
+
+			Fetch(Segment seg[]) {
+				Value map[] = new Value[0];
+				int base = 0;
+				if (seg.length > 0) {
+				    Segment end = seg[seg.length-1];
+				    long span = (long)end.start_pc + end.data.length - seg[0].start_pc;
+				    long words = 0;
+				    for (int s = 0; s < seg.length; s++) words += seg[s].data.length;
+				    if (span <= MAX_DIRECT && span <= 2 * words) {
+					base = seg[0].start_pc;
+					map = new Value[(int)span];
+					Arrays.fill(map, NOP_VALUE);
+					for (int s = 0; s < seg.length; s++)
+					    for (int i = 0; i < seg[s].data.length; i++)
+						map[seg[s].start_pc - base + i] = seg[s].value(i);
+				    }
+				}
+				this.map = map;
+				this.base = base;
+			}
+		}
+
+		public Listing() { src = ""; seg = new Segment[0]; data_seg = new Segment[0]; addr_map = new int[0]; src_lines = new ArrayList(); indexSegments(); }
 		public void setListener(State state) {
 			this.state = state;
 		}
@@ -283,13 +436,25 @@ class Program32 extends ManagedComponent {
 
 		public State getState() { return state; }
 
+		// The last two assemblies. A new source is assembled reusing what it
+		// shares with the last; undoing or redoing a change just swaps them.
+		private Assembly last, previous;
+
 		public void setSource(String s) throws IOException {
-			ArrayList sl = splitLines(s);
-			ArrayList am = new ArrayList();
-			seg = assemble(sl, 0, am);
+			if (s.equals(src)) return;
+			Assembly a;
+			if (previous != null && s.equals(previous.src))
+			    a = previous;
+			else
+			    a = assemble(s, 0, last);
+			previous = last;
+			last = a;
+			seg = a.seg;
+			data_seg = a.data.seg;
+			indexSegments();
 			src = s;
-			addr_map = am;
-			src_lines = sl;
+			addr_map = a.addr_map;
+			src_lines = a.src_lines;
 		}
 
 		public Listing(String value) throws IOException {
@@ -297,6 +462,28 @@ class Program32 extends ManagedComponent {
 		    setSource(value);
 		}
 
+		// A listing of value, taken from the assembly cache when it is there.
+		static Listing cached(String value) throws IOException {
+		    Listing ret = AssemblyCache.read(value);
+		    if (ret == null) {
+			ret = new Listing(value);
+			AssemblyCache.write(ret);
+		    }
+		    return ret;
+		}
+
+		// Installs an assembly of s that was made earlier. The next edit
+		// is assembled from scratch, as there is nothing to reuse.
+		void setAssembled(String s, ArrayList lines, Segment seg[], Segment data_seg[], int addr_map[]) {
+			last = previous = null;
+			this.seg = seg;
+			this.data_seg = data_seg;
+			indexSegments();
+			src = s;
+			this.addr_map = addr_map;
+			src_lines = lines;
+		}
+
 		public String write() throws IOException {
 			return src;
 		}
@@ -309,15 +496,46 @@ class Program32 extends ManagedComponent {
 			    return NO_OP;
 		}
 
+		// The word at pc i as a Value; every fetch of a pc gets the same
+		// one, so stepping through a program allocates nothing.
+		Value instrValue(int i) {
+			Index x = index;
+			Fetch f = x.fetch();
+			int d = i - f.base;
+			if (d >= 0 && d < f.map.length)
+			    return f.map[d];
+			Segment s = x.segmentOf(i);
+			return s != null ? s.value(i - s.start_pc) : NOP_VALUE;
+		}
+
+		// disassembly of the word at pc i
+		String textAt(int i) {
+			Segment s = segmentOf(i);
+			return s != null ? s.text(i - s.start_pc) : NOP_TEXT;
+		}
+
+		String addressText(int i) {
+			Segment s = segmentOf(i);
+			return s != null ? s.addrText(i - s.start_pc) : StringUtil.toHexString(32, i*4);
+		}
+
+		String binaryText(int i) {
+			Segment s = segmentOf(i);
+			return s != null ? s.binText(i - s.start_pc) : NOP_BINARY;
+		}
+
+		// the source line that assembled to the word at pc i, or -1
+		int lineOf(int i) {
+			Segment s = segmentOf(i);
+			return s != null ? s.line[i - s.start_pc] : -1;
+		}
+
 		Segment segmentOf(int i) {
-			for (int s = 0; s < seg.length; s++) {
-			    if (i >= seg[s].start_pc && i < seg[s].start_pc + seg[s].data.length) {
-				//System.out.println("segment of "+i+" is "+seg[s].start_pc);
-				return seg[s];
-			    }
-			}
-			//System.out.println("segment of "+i+" is null");
-			return null;
+			return index.segmentOf(i);
+		}
+
+		private void indexSegments() {
+			index = new Index(seg);
 		}
 
 
@@ -349,38 +567,557 @@ class Program32 extends ManagedComponent {
 		return buf;
 	}
 
-	static Pattern pat0 = Pattern.compile("\\s+");
-	static Pattern pat1 = Pattern.compile("\\s*,\\s*");
+	// Source lines are broken into tokens once, by Lexer, and both passes of
+	// the assembler work from the resulting Lines.
+
+	// token kinds
+	static final byte T_REG = 1;	// $register; value is its number, or -1 if too large
+	static final byte T_NUM = 2;	// hex or decimal number, as written
+	static final byte T_NAME = 3;	// label or "pc"
+	static final byte T_COMMA = 4;
+	static final byte T_LPAREN = 5;
+	static final byte T_RPAREN = 6;
+	static final byte T_BAD = 7;	// anything else
+	static final byte T_IMM = 8;	// in operand shapes only: a number or a name
+	static final byte T_STR = 9;	// "string"; tok is its text, escapes decoded
+
+	// directives of the data section; Line.dir is the index of one, or -1
+	static final String DATA_DIRS[] = { ".data", ".byte", ".half", ".word", ".ascii", ".asciiz", ".space", ".align" };
+	static final int D_DATA = 0, D_BYTE = 1, D_HALF = 2, D_WORD = 3, D_ASCII = 4, D_ASCIIZ = 5, D_SPACE = 6, D_ALIGN = 7;
+
+	// one source line, without its comment
+	static class Line implements Cloneable {
+		int lineno;
+		String src;	// the line, trimmed
+		String label;	// label defined on this line, or null
+		String error;	// why the label is malformed, or null
+		String op;	// mnemonic or directive as written, or null after a lone label
+		int op_start, args_start; // where op and its operands begin in src
+		Command cmd;	// the command op names, or null
+		boolean text;	// op is .text
+		int dir = -1;	// the data directive op is, or -1
+		byte kind[];	// operand tokens
+		String tok[];
+		int value[];
+		boolean expanded; // comes from the body of a macro
+		Line body[];	// statements of the .rept or macro call this line opens
+		int count;	// times body is repeated
+		int size;	// words the whole block takes, once laid out
+
+		Line(int lineno, String src) { this.lineno = lineno; this.src = src; }
+
+		// this line, opening a block of count repetitions of body
+		Line block(Line body[], int count) {
+			try {
+			    Line ln = (Line)clone();
+			    ln.body = body;
+			    ln.count = count;
+			    return ln;
+			} catch (CloneNotSupportedException e) {
+			    return null;
+			}
+		}
+
+		// the number of words this line assembles to
+		int words() {
+			if (body != null) return size;
+			return cmd != null ? cmd.size(this) : 1;
+		}
+
+		// this line, moved to lineno
+		Line at(int lineno) {
+			if (lineno == this.lineno) return this;
+			try {
+			    Line ln = (Line)clone();
+			    ln.lineno = lineno;
+			    return ln;
+			} catch (CloneNotSupportedException e) {
+			    return null;
+			}
+		}
+
+		// whether an operand names one of the labels in names
+		boolean dependsOn(HashSet names) {
+			if (names.isEmpty()) return false;
+			for (int k = 0; k < kind.length; k++)
+			    if (kind[k] == T_NAME && names.contains(tok[k])) return true;
+			return false;
+		}
+
+		boolean matches(byte shape[]) {
+			if (kind.length != shape.length) return false;
+			for (int k = 0; k < shape.length; k++) {
+			    if (kind[k] == shape[k]) continue;
+			    if (shape[k] == T_IMM && (kind[k] == T_NUM || kind[k] == T_NAME)) continue;
+			    return false;
+			}
+			return true;
+		}
+
+		// op and its operands, and the operands alone, as error messages
+		// have always shown them
+		String statement() { return normalize(src.substring(op_start)); }
+		String args() { return normalize(src.substring(args_start)); }
+	}
+
+	// Collapses blanks to a single space, and drops those around commas.
+	static String normalize(String s) {
+		StringBuffer buf = new StringBuffer(s.length());
+		boolean blank = false;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c <= ' ') {
+			    blank = true;
+			} else {
+			    int n = buf.length();
+			    if (c == ',' && n > 0 && buf.charAt(n-1) == ' ') buf.setLength(n-1);
+			    else if (blank && n > 0 && buf.charAt(n-1) != ',') buf.append(' ');
+			    buf.append(c);
+			    blank = false;
+			}
+		}
+		return buf.toString();
+	}
+
+	static HashMap regs = new HashMap(); // register name -> number
+	static {
+		String names[] = { "zero", "at", "v0", "v1", "a0", "a1", "a2", "a3",
+		    "t0", "t1", "t2", "t3", "t4", "t5", "t6", "t7", "t8", "t9",
+		    "s0", "s1", "s2", "s3", "s4", "s5", "s6", "s7",
+		    "k0", "k1", "gp", "sp", "fp", "ra" };
+		for (int i = 0; i < names.length; i++)
+			regs.put(names[i], new Integer(reg(names[i])));
+	}
+
+	static boolean isLetter(char c) { return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'); }
+	static boolean isDigit(char c) { return c >= '0' && c <= '9'; }
+	static boolean isHexDigit(char c) { return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'); }
+	static boolean isWordChar(char c) { return isLetter(c) || isDigit(c) || c == '_'; }
+
+	static boolean isLabel(String name) {
+		if (name.length() == 0 || !isLetter(name.charAt(0)) || name.equalsIgnoreCase("pc"))
+			return false;
+		for (int i = 1; i < name.length(); i++)
+			if (!isWordChar(name.charAt(i))) return false;
+		return true;
+	}
+
+	static String lower(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z') return s.toLowerCase();
+		}
+		return s;
+	}
+
+	static class Lexer {
+		// the tokens of the line being lexed
+		private byte kind[] = new byte[16];
+		private String tok[] = new String[16];
+		private int value[] = new int[16];
+		private int count;
+
+		Line[] lex(ArrayList src_lines) {
+			Line lines[] = new Line[src_lines.size()];
+			for (int lineno = 0; lineno < lines.length; lineno++)
+				lines[lineno] = lex((String)src_lines.get(lineno), lineno);
+			return lines;
+		}
+
+		// Returns the Line for raw, or null if it is blank or a comment.
+		Line lex(String raw, int lineno) {
+			int end = commentStart(raw);
+			int start = 0;
+			while (start < end && raw.charAt(start) <= ' ') start++;
+			while (end > start && raw.charAt(end-1) <= ' ') end--;
+			if (start == end) return null;
+			String src = raw.substring(start, end);
+			int n = src.length();
+			Line ln = new Line(lineno, src);
+
+			int p = 0;
+			if (src.charAt(0) != '.') {
+			    int colon = src.indexOf(':');
+			    if (colon >= 0) {
+				String name = normalize(src.substring(0, colon));
+				if (name.length() == 0) {
+				    ln.error = "Line " + (lineno+1) + ": expected label name before ':'";
+				    return ln;
+				}
+				if (!isLabel(name)) {
+				    ln.error = "Line " + (lineno+1) + ": illegal label name '"+name+"' before ':'";
+				    return ln;
+				}
+				ln.label = name;
+				p = colon + 1;
+				while (p < n && src.charAt(p) <= ' ') p++;
+				if (p == n) return ln;
+			    }
+			}
+
+			int q = p;
+			while (q < n && src.charAt(q) > ' ') q++;
+			ln.op_start = p;
+			ln.op = src.substring(p, q);
+			String name = lower(ln.op);
+			ln.cmd = (Command)cmds.get(name);
+			ln.text = name.equals(".text");
+			if (name.startsWith("."))
+			    for (int d = 0; d < DATA_DIRS.length && ln.dir < 0; d++)
+				if (name.equals(DATA_DIRS[d])) ln.dir = d;
+			while (q < n && src.charAt(q) <= ' ') q++;
+			ln.args_start = q;
+
+			count = 0;
+			while (q < n) {
+			    char c = src.charAt(q);
+			    if (c <= ' ') {
+				q++;
+			    } else if (c == ',') {
+				add(T_COMMA, null, 0);
+				q++;
+			    } else if (c == '(') {
+				add(T_LPAREN, null, 0);
+				q++;
+			    } else if (c == ')') {
+				add(T_RPAREN, null, 0);
+				q++;
+			    } else if (c == '$') {
+				q = register(src, q + 1);
+			    } else if (c == '"') {
+				q = string(src, q + 1);
+			    } else if (isDigit(c) || (c == '-' && q+1 < n && isDigit(src.charAt(q+1)))) {
+				q = number(src, q);
+			    } else if (isLetter(c)) {
+				int e = wordEnd(src, q);
+				add(T_NAME, src.substring(q, e), 0);
+				q = e;
+			    } else {
+				add(T_BAD, null, 0);
+				q = c == '_' ? wordEnd(src, q) : q + 1;
+			    }
+			}
+			ln.kind = new byte[count];
+			ln.tok = new String[count];
+			ln.value = new int[count];
+			System.arraycopy(kind, 0, ln.kind, 0, count);
+			System.arraycopy(tok, 0, ln.tok, 0, count);
+			System.arraycopy(value, 0, ln.value, 0, count);
+			return ln;
+		}
 
-	static ArrayList normalize(ArrayList lines) {
-		ArrayList res = new ArrayList();
-		for (int lineno = 0; lineno < lines.size(); lineno++) {
-			String line = (String)lines.get(lineno);
-			int i = line.indexOf('#');
-			if (i == 0) line = "";
-			else if (i > 0) line = line.substring(0, i);
-			line = line.trim();
-			line = pat0.matcher(line).replaceAll(" ");
-			line = pat1.matcher(line).replaceAll(",");
-			if (line.length() == 0) res.add(null);
-			else res.add(line);
+		private int register(String src, int p) {
+			int e = wordEnd(src, p);
+			String name = src.substring(p, e);
+			Integer r = (Integer)regs.get(name);
+			if (r != null) {
+			    add(T_REG, null, r.intValue());
+			} else if (e > p && digits(src, p, e)) {
+			    try {
+				add(T_REG, null, Integer.parseInt(name));
+			    } catch (NumberFormatException x) {
+				add(T_REG, name, -1);
+			    }
+			} else {
+			    add(T_BAD, null, 0);
+			}
+			return e;
+		}
+
+		static final String ESCAPES = "ntr0\\\"";
+		static final String ESCAPED = "\n\t\r\0\\\"";
+
+		// A string, from just after its opening quote. One that is not
+		// closed, or has an unknown escape, is T_BAD.
+		private int string(String src, int p) {
+			StringBuffer buf = new StringBuffer();
+			boolean ok = true;
+			int n = src.length();
+			while (p < n) {
+			    char c = src.charAt(p++);
+			    if (c == '"') {
+				add(ok ? T_STR : T_BAD, buf.toString(), 0);
+				return p;
+			    }
+			    if (c == '\\' && p < n) {
+				int k = ESCAPES.indexOf(src.charAt(p++));
+				if (k >= 0) c = ESCAPED.charAt(k);
+				else ok = false;
+			    }
+			    buf.append(c);
+			}
+			add(T_BAD, null, 0);
+			return p;
+		}
+
+		// where the comment on raw begins: its first '#' outside a string
+		private static int commentStart(String raw) {
+			int end = raw.indexOf('#');
+			if (end < 0) return raw.length();
+			int q = raw.indexOf('"');
+			if (q < 0 || q > end) return end;
+			boolean quoted = false;
+			for (int i = q; i < raw.length(); i++) {
+			    char c = raw.charAt(i);
+			    if (quoted && c == '\\') i++;
+			    else if (c == '"') quoted = !quoted;
+			    else if (c == '#' && !quoted) return i;
+			}
+			return raw.length();
+		}
+
+		private int number(String src, int p) {
+			int s = src.charAt(p) == '-' ? p + 1 : p;
+			int e = wordEnd(src, s);
+			boolean ok;
+			if (s == p && e - s > 2 && src.charAt(s) == '0' && src.charAt(s+1) == 'x') {
+			    ok = true;
+			    for (int i = s + 2; i < e; i++)
+				if (!isHexDigit(src.charAt(i))) ok = false;
+			} else {
+			    ok = digits(src, s, e);
+			}
+			add(ok ? T_NUM : T_BAD, src.substring(p, e), 0);
+			return e;
+		}
+
+		private static boolean digits(String src, int s, int e) {
+			for (int i = s; i < e; i++)
+				if (!isDigit(src.charAt(i))) return false;
+			return true;
+		}
+
+		private static int wordEnd(String src, int p) {
+			while (p < src.length() && isWordChar(src.charAt(p))) p++;
+			return p;
+		}
+
+		private void add(byte k, String t, int v) {
+			if (count == kind.length) {
+			    byte k2[] = new byte[count*2];
+			    String t2[] = new String[count*2];
+			    int v2[] = new int[count*2];
+			    System.arraycopy(kind, 0, k2, 0, count);
+			    System.arraycopy(tok, 0, t2, 0, count);
+			    System.arraycopy(value, 0, v2, 0, count);
+			    kind = k2; tok = t2; value = v2;
+			}
+			kind[count] = k;
+			tok[count] = t;
+			value[count] = v;
+			count++;
 		}
-		return res;
 	}
 
-	// some patterns
-	static String _reg = "\\$(\\d+|zero|at|v[01]|a[0-3]|t[0-9]|s[0-7]|k[01]|gp|sp|fp|ra)";
-	static String __hex = "0x[a-fA-F0-9]+";
-	static String __decimal = "-?\\d+";
-	static String __label = "[a-zA-Z]\\w*";
-	static String _imm = "("+__hex+"|"+__decimal+"|"+__label+")";
+	// A macro: its parameter names, and the source of its body.
+	static class Macro {
+		String name;
+		String params[];
+		String body[];
+	}
+
+	// Turns the lexed lines of a source into the statements the passes
+	// work through. Macro definitions are taken out, and each call is
+	// replaced by a block of the lines it expands to. The lines from a
+	// .rept to its .endr become a block too; it is laid out and encoded
+	// as many times as asked, but never copied.
+	static class Expander {
+		static final int MAX_DEPTH = 64; // macro calls and blocks within each other
+		static final int MAX_LINES = 1 << 20; // lines all macro calls expand to
+		private Lexer lexer;
+		private HashMap macros = new HashMap(); // name -> Macro
+		private HashSet active = new HashSet(); // macros being expanded
+		private int expanded = 0;
+		ParseException err = new ParseException();
+
+		Expander(Lexer lexer) { this.lexer = lexer; }
+
+		Line[] expand(Line lines[]) {
+			ArrayList out = new ArrayList(lines.length);
+			expand(lines, 0, lines.length, out, 0);
+			return toArray(out);
+		}
+
+		// Appends the statements of lines[lo..hi) to out. Macros may only
+		// be defined at depth 0, outside any block.
+		private void expand(Line lines[], int lo, int hi, ArrayList out, int depth) {
+			for (int i = lo; i < hi; i++) {
+			    Line line = lines[i];
+			    if (line == null) continue;
+			    if (line.op == null || line.cmd != null) {
+				out.add(line);
+				continue;
+			    }
+			    String op = lower(line.op);
+			    int lineno = line.lineno;
+			    if (op.equals(".macro") || op.equals(".rept")) {
+				String close = op.equals(".macro") ? ".endm" : ".endr";
+				int end = find(lines, i, hi, op, close);
+				if (end < 0) {
+				    err.add("Line "+(lineno+1)+": '"+line.op+"' without '"+close+"'");
+				    return;
+				}
+				if (line.label != null) {
+				    err.add("Line "+(lineno+1)+": label before '"+line.op+"'");
+				} else if (op.equals(".rept")) {
+				    int count = count(line);
+				    ArrayList body = new ArrayList();
+				    expand(lines, i+1, end, body, depth + 1);
+				    if (count >= 0) out.add(line.block(toArray(body), count));
+				} else if (depth > 0) {
+				    err.add("Line "+(lineno+1)+": '"+line.op+"' inside .rept or .macro");
+				} else {
+				    define(line, lines, i+1, end);
+				}
+				i = end;
+			    } else if (op.equals(".endm") || op.equals(".endr")) {
+				err.add("Line "+(lineno+1)+": '"+line.op+"' without '"+(op.equals(".endm") ? ".macro" : ".rept")+"'");
+			    } else {
+				Macro m = (Macro)macros.get(op);
+				if (m == null) out.add(line);
+				else call(m, line, out, depth);
+			    }
+			}
+		}
+
+		// the line of the directive closing the one at lines[i], or -1
+		private static int find(Line lines[], int i, int hi, String open, String close) {
+			int nested = 0;
+			for (int j = i + 1; j < hi; j++) {
+			    Line ln = lines[j];
+			    if (ln == null || ln.op == null || ln.cmd != null) continue;
+			    String op = lower(ln.op);
+			    if (op.equals(open)) nested++;
+			    else if (op.equals(close) && nested-- == 0) return j;
+			}
+			return -1;
+		}
+
+		// the repeat count of a .rept, or -1
+		private int count(Line line) {
+			int lineno = line.lineno;
+			if (!line.matches(S_I) || line.kind[0] != T_NUM) {
+			    err.add("Line "+(lineno+1)+": '"+line.op+"' expects a repeat count");
+			    return -1;
+			}
+			try {
+			    return resolve(lineno, line.tok[0], 0, null, UNSIGNED_ABSOLUTE, 31);
+			} catch (ParseException e) {
+			    err.add(e);
+			} catch (IOException e) {
+			    err.add("Line "+(lineno+1)+": "+e.getMessage());
+			}
+			return -1;
+		}
 
+		// .macro name [param [, param]...]
+		private void define(Line line, Line lines[], int lo, int hi) {
+			int lineno = line.lineno;
+			int n = line.kind.length;
+			boolean ok = n > 0 && line.kind[0] == T_NAME && isLabel(line.tok[0]);
+			ArrayList params = new ArrayList();
+			for (int k = 1; ok && k < n; k++) {
+			    if (line.kind[k] == T_COMMA && k > 1 && k < n-1) continue;
+			    if (line.kind[k] == T_NAME && params.indexOf(line.tok[k]) < 0) params.add(line.tok[k]);
+			    else ok = false;
+			}
+			if (!ok) {
+			    err.add("Line "+(lineno+1)+": '"+line.op+"' expects a name and parameter names");
+			    return;
+			}
+			Macro m = new Macro();
+			m.name = line.tok[0];
+			String key = lower(m.name);
+			if (cmds.containsKey(key)) {
+			    err.add("Line "+(lineno+1)+": macro name '"+m.name+"' is an instruction");
+			    return;
+			}
+			if (macros.containsKey(key)) {
+			    err.add("Line "+(lineno+1)+": macro '"+m.name+"' is already defined");
+			    return;
+			}
+			m.params = (String[])params.toArray(new String[params.size()]);
+			ArrayList body = new ArrayList();
+			for (int j = lo; j < hi; j++)
+			    if (lines[j] != null) body.add(lines[j].src);
+			m.body = (String[])body.toArray(new String[body.size()]);
+			macros.put(key, m);
+		}
+
+		private void call(Macro m, Line line, ArrayList out, int depth) {
+			int lineno = line.lineno;
+			if (active.contains(m)) {
+			    err.add("Line "+(lineno+1)+": macro '"+m.name+"' calls itself");
+			    return;
+			}
+			if (depth >= MAX_DEPTH) {
+			    err.add("Line "+(lineno+1)+": macro calls nested too deeply in '"+m.name+"'");
+			    return;
+			}
+			expanded += m.body.length;
+			if (expanded > MAX_LINES) {
+			    if (expanded - m.body.length <= MAX_LINES)
+				err.add("Line "+(lineno+1)+": macros expand to more than "+MAX_LINES+" lines");
+			    return;
+			}
+			String a = line.args();
+			String args[] = a.length() == 0 ? new String[0] : a.split(",", -1);
+			if (args.length != m.params.length) {
+			    err.add("Line "+(lineno+1)+": '"+m.name+"' expects "+m.params.length+(m.params.length == 1 ? " argument" : " arguments"));
+			    return;
+			}
+			Line body[] = new Line[m.body.length];
+			for (int k = 0; k < body.length; k++) {
+			    body[k] = lexer.lex(substitute(m.body[k], m.params, args), lineno);
+			    if (body[k] != null) body[k].expanded = true;
+			}
+			ArrayList stmts = new ArrayList();
+			active.add(m);
+			expand(body, 0, body.length, stmts, depth + 1);
+			active.remove(m);
+			out.add(line.block(toArray(stmts), 1));
+		}
+
+		// src with each \param replaced by the matching argument
+		static String substitute(String src, String params[], String args[]) {
+			if (src.indexOf('\\') < 0) return src;
+			StringBuffer buf = new StringBuffer(src.length());
+			int p = 0;
+			while (p < src.length()) {
+			    char c = src.charAt(p);
+			    if (c == '\\') {
+				int e = Lexer.wordEnd(src, p + 1);
+				String name = src.substring(p + 1, e);
+				int k = 0;
+				while (k < params.length && !params[k].equals(name)) k++;
+				if (k < params.length) {
+				    buf.append(args[k]);
+				    p = e;
+				    continue;
+				}
+			    }
+			    buf.append(c);
+			    p++;
+			}
+			return buf.toString();
+		}
+
+		private static Line[] toArray(ArrayList lines) {
+			return (Line[])lines.toArray(new Line[lines.size()]);
+		}
+	}
+
+	// an address from 0 to 0xffffffff, in hex or decimal
 	static int parseSegmentAddress(int lineno, String addr) throws IOException {
-		if (addr.toLowerCase().startsWith("0x"))
-			return Integer.parseInt(addr.substring(2), 16);
-		char c = addr.charAt(0);
-		if ((c >= '0' && c <= '9'))
-			return Integer.parseInt(addr);
+		try {
+		    long v = -1;
+		    if (addr.toLowerCase().startsWith("0x"))
+			v = Long.parseLong(addr.substring(2), 16);
+		    else if (addr.length() > 0 && addr.charAt(0) >= '0' && addr.charAt(0) <= '9')
+			v = Long.parseLong(addr);
+		    if (v >= 0 && v <= 0xffffffffL)
+			return (int)v;
+		} catch (NumberFormatException e) { }
 		throw new ParseException("Line " + (lineno+1) + ": illegal address '"+addr+"' in assembly directive");
 	}
 
@@ -396,81 +1133,395 @@ class Program32 extends ManagedComponent {
 	}
 	
 
-	static Pattern pat_label = Pattern.compile("("+__label+")");
-	static HashMap pass1(ArrayList lines, int start_address, ArrayList addr_map) throws IOException {
-		HashMap map = new HashMap();
+	static final int NO_ADDRESS = -1; // never word aligned
+
+	static final int MAX_BLOCK = 1 << 28; // words in one .rept or macro call
+
+	static final long DATA_END = 1L << 32; // byte address after the data section's last
+
+	// Lays out the text and data sections, and returns the address of each
+	// label. Statements after .data, up to the next .text, belong to the
+	// data section; data.in and data.at are set for each of them.
+	static SymbolTable pass1(Line prog[], int start_address, int addr_map[], Data data, ParseException err) throws IOException {
+		SymbolTable map = new SymbolTable();
 		int addr = start_address;
-		addr_map.clear();
-		ParseException err = new ParseException();
-		for (int lineno = 0; lineno < lines.size(); lineno++) {
-			String line = (String)lines.get(lineno);
-			if (line == null) {
-				addr_map.add(null);
+		// next free byte of the data section; a bare .data starts at 0,
+		// not at 0x10010000 as on MIPS, as the RAMs it is loaded into
+		// are indexed from 0 and hold 2^20 words by default
+		long data_addr = 0;
+		boolean in_data = false;
+		data.in = new boolean[prog.length];
+		data.at = new int[prog.length];
+		Arrays.fill(addr_map, NO_ADDRESS);
+		for (int k = 0; k < prog.length; k++) {
+			Line line = prog[k];
+			int lineno = line.lineno;
+			if (line.error != null) {
+				err.add(line.error);
 				continue;
 			}
-			int i;
-			if (line.toLowerCase().startsWith(".text")) {
-			    i = line.indexOf(' ');
-			    if (i > 0) {
+			boolean is_data = in_data && !line.text && line.dir != D_DATA;
+			if (is_data && line.op != null) {
+				long align = dataAlign(line);
+				data_addr = (data_addr + align - 1) & -align;
+			}
+			if (line.label != null)
+				map.put(line.label, is_data ? (int)data_addr : addr);
+			if (is_data) {
+				data.in[k] = true;
+				data.at[k] = (int)data_addr;
+				if (line.op != null && data_addr < DATA_END) {
+				    data_addr += dataSize(line, err);
+				    if (data_addr > DATA_END)
+					err.add("Line " + (lineno+1) + ": data runs past address "+toHex((int)(DATA_END-1), 8));
+				}
+			} else if (line.op == null) {
+				// label:
+			} else if (line.text) {
+				in_data = false;
+				if (line.kind.length == 0)
+				    continue; // back to where the text left off
+				String a = line.args();
+				try {
+				    int v = parseSegmentAddress(lineno, a);
+				    if ((v & 3) != 0)
+					err.add("Line " + (lineno+1) + ": mis-aligned address '"+a+"' in .text assembly directive");
+				    addr = v & ~3;
+				} catch (ParseException e){
+				    err.add(e);
+				}
+			} else if (line.dir == D_DATA) {
+				in_data = true;
+				data.in[k] = true;
+				if (line.kind.length == 0)
+				    continue; // back to where the data left off
 				try {
-				    int a = parseSegmentAddress(lineno, line.substring(i+1));
-				    if ((a & 3) != 0)
-					err.add("Line " + (lineno+1) + ": mis-aligned address '"+line.substring(i+1)+"' in .text assembly directive");
-				    addr = a & ~3;
+				    data_addr = parseSegmentAddress(lineno, line.args()) & 0xffffffffL;
 				} catch (ParseException e){
 				    err.add(e);
 				}
+			} else if (line.body != null) {
+				int n = layout(line, addr, addr_map, line.count > 0, err);
+				if (n > 0) addr_map[lineno] = addr;
+				addr += 4 * n;
+			} else if (line.cmd == null && line.dir >= 0) {
+				err.add("Line " + (lineno+1) + ": '"+line.op+"' outside the .data section");
+			} else if (line.cmd == null && line.op.startsWith(".")) {
+				err.add("Line " + (lineno+1) + ": unrecognized assembly directive '"+line.statement()+"'");
+			} else {
+				addr_map[lineno] = addr;
+				addr += 4 * line.words();
+			}
+		}
+		if (err.getCount() > 0)
+		    throw err;
+		return map;
+	}
+
+	// Lays out the body of a block from addr, and returns the number of
+	// words the whole block takes. Lines get an address in addr_map from
+	// the first repetition, if mapped, except those a macro expanded to.
+	static int layout(Line block, int addr, int addr_map[], boolean mapped, ParseException err) {
+		long words = 0;
+		for (int k = 0; k < block.body.length; k++) {
+			Line line = block.body[k];
+			int lineno = line.lineno;
+			if (line.error != null) {
+				err.add(line.error);
+			} else if (line.label != null) {
+				err.add("Line " + (lineno+1) + ": label '"+line.label+"' inside .rept or .macro");
+			} else if (line.text || line.dir == D_DATA) {
+				err.add("Line " + (lineno+1) + ": '"+line.op+"' inside .rept or .macro");
+			} else if (line.cmd == null && line.body == null) {
+				if (line.dir >= 0)
+				    err.add("Line " + (lineno+1) + ": '"+line.op+"' outside the .data section");
+				else if (line.op.startsWith("."))
+				    err.add("Line " + (lineno+1) + ": unrecognized assembly directive '"+line.statement()+"'");
+				else
+				    err.add("Line " + (lineno+1)+": unrecognized instruction: '"+line.op+"'");
+			} else {
+				int at = addr + 4 * (int)words;
+				int n = line.body != null ? layout(line, at, addr_map, mapped && line.count > 0, err) : line.words();
+				if (mapped && !line.expanded && n > 0 && addr_map[lineno] == NO_ADDRESS)
+				    addr_map[lineno] = at;
+				words += n;
+			}
+		}
+		words *= block.count;
+		if (words > MAX_BLOCK) {
+			err.add("Line " + (block.lineno+1) + ": '"+block.op+"' assembles to more than "+MAX_BLOCK+" words");
+			words = 0;
+		}
+		block.size = (int)words;
+		return block.size;
+	}
+
+	// The data section of an assembly: which statements belong to it, the
+	// byte address each starts at, and the words they make.
+	static class Data {
+		boolean in[];	// statement belongs to the data section
+		int at[];	// and the byte address it starts at
+		Segment seg[];	// sorted by start_pc; a word address, as for text
+	}
+
+	static final int MAX_ALIGN = 16; // .align to 2^16 bytes at most
+
+	// the number a .space or .align gives, or -1
+	static int dataCount(Line line) {
+		if (!line.matches(S_I) || line.kind[0] != T_NUM) return -1;
+		try {
+		    return resolve(line.lineno, line.tok[0], 0, null, UNSIGNED_ABSOLUTE, 31);
+		} catch (IOException e) {
+		    return -1;
+		}
+	}
+
+	// the number of operands of kind k, separated by commas, or -1
+	static int listLength(Line line, byte k) {
+		int n = line.kind.length;
+		if (n % 2 == 0) return -1;
+		for (int i = 0; i < n; i++) {
+		    byte want = i % 2 == 0 ? k : T_COMMA;
+		    if (line.kind[i] == want) continue;
+		    if (want == T_IMM && (line.kind[i] == T_NUM || line.kind[i] == T_NAME)) continue;
+		    return -1;
+		}
+		return (n + 1) / 2;
+	}
+
+	// the bytes a data statement must be aligned to
+	static long dataAlign(Line line) {
+		switch (line.dir) {
+		    case D_HALF: return 2;
+		    case D_WORD: return 4;
+		    case D_ALIGN:
+			int n = dataCount(line);
+			return n >= 0 && n <= MAX_ALIGN ? 1L << n : 1;
+		    default: return 1;
+		}
+	}
+
+	// the bytes a data statement takes, once aligned
+	static long dataSize(Line line, ParseException err) {
+		int lineno = line.lineno;
+		if (line.body != null || line.dir < 0) {
+			err.add("Line " + (lineno+1) + ": '"+line.op+"' inside the .data section");
+			return 0;
+		}
+		switch (line.dir) {
+		    case D_BYTE: case D_HALF: case D_WORD:
+			int n = listLength(line, T_IMM);
+			if (n < 0) {
+			    err.add("Line " + (lineno+1) + ": '"+line.op+"' expects a list of values");
+			    return 0;
+			}
+			return (long)n << (line.dir - D_BYTE);
+		    case D_ASCII: case D_ASCIIZ:
+			if (listLength(line, T_STR) < 0) {
+			    err.add("Line " + (lineno+1) + ": '"+line.op+"' expects a list of strings");
+			    return 0;
+			}
+			long size = 0;
+			for (int k = 0; k < line.kind.length; k += 2)
+			    size += line.tok[k].getBytes(StandardCharsets.UTF_8).length + (line.dir == D_ASCIIZ ? 1 : 0);
+			return size;
+		    case D_SPACE:
+			int space = dataCount(line);
+			if (space < 0) {
+			    err.add("Line " + (lineno+1) + ": '"+line.op+"' expects a number of bytes");
+			    return 0;
+			}
+			return space;
+		    default: // D_ALIGN
+			int align = dataCount(line);
+			if (align < 0 || align > MAX_ALIGN)
+			    err.add("Line " + (lineno+1) + ": '"+line.op+"' expects a power of two from 0 to "+MAX_ALIGN);
+			return 0;
+		}
+	}
+
+	// A value of a .byte, .half or .word list: signed if negative, unsigned
+	// otherwise, and in nbits either way.
+	static int dataValue(Line line, int k, SymbolTable sym, int nbits) throws IOException {
+		return resolve(line.lineno, line.tok[k], 0, sym, DATA_VALUE, nbits);
+	}
+
+	// Encodes the data section, now that every label has its address.
+	static Segment[] encodeData(Assembly a, ParseException err) {
+		DataImage image = new DataImage();
+		for (int k = 0; k < a.prog.length; k++) {
+			Line line = a.prog[k];
+			if (!a.data.in[k] || line.op == null || line.dir <= D_DATA || line.dir == D_ALIGN) continue;
+			long addr = a.data.at[k] & 0xffffffffL;
+			int lineno = line.lineno;
+			try {
+			    switch (line.dir) {
+				case D_BYTE: case D_HALF: case D_WORD:
+				    int bytes = 1 << (line.dir - D_BYTE);
+				    for (int i = 0; i < line.kind.length; i += 2) {
+					int v = dataValue(line, i, a.sym, 8 * bytes);
+					for (int b = bytes - 1; b >= 0; b--)
+					    image.put(addr++, v >>> (8 * b), lineno);
+				    }
+				    break;
+				case D_ASCII: case D_ASCIIZ:
+				    for (int i = 0; i < line.kind.length; i += 2) {
+					byte s[] = line.tok[i].getBytes(StandardCharsets.UTF_8);
+					for (int b = 0; b < s.length; b++)
+					    image.put(addr++, s[b], lineno);
+					if (line.dir == D_ASCIIZ)
+					    image.put(addr++, 0, lineno);
+				    }
+				    break;
+				case D_SPACE:
+				    int n = dataCount(line);
+				    if (n < DataImage.GAP)
+					for (int b = 0; b < n; b++) image.put(addr++, 0, lineno);
+				    break;
 			    }
-			    addr_map.add(null);
-			    continue;
+			} catch (ParseException e) {
+			    err.add(e);
+			} catch (IOException e) {
+			    err.add("Line " + (lineno+1)+": "+e.getMessage());
 			}
-			if (line.toLowerCase().startsWith(".word")) {
-			    addr_map.add(new Integer(addr));
-			    addr += 4;
-			    continue;
+		}
+		return image.segments(err);
+	}
+
+	// The data section as it is encoded: runs of bytes, packed into words
+	// big-endian, as MIPS orders them, so the byte at address 4*w is the
+	// top byte of word w. Bytes are put in address order within a run;
+	// a jump back, or ahead by GAP bytes or more, starts another, and a
+	// shorter jump ahead is filled with zeros.
+	static class DataImage {
+		static final int GAP = 4096;
+
+		private static class Run {
+			long start, end;	// byte addresses
+			int words[] = new int[16], lines[] = new int[16];
+		}
+
+		private ArrayList runs = new ArrayList();
+		private Run cur;
+
+		void put(long addr, int b, int lineno) {
+			if (cur == null || addr < cur.end || addr - cur.end >= GAP) {
+			    cur = new Run();
+			    cur.start = cur.end = addr;
+			    runs.add(cur);
 			}
-			if (line.startsWith(".")) {
-			    err.add("Line " + (lineno+1) + ": unrecognized assembly directive '"+line+"'");
-			    continue;
+			while (cur.end < addr) store(0, lineno);
+			store(b, lineno);
+		}
+
+		private void store(int b, int lineno) {
+			int w = (int)((cur.end >>> 2) - (cur.start >>> 2));
+			if (w == cur.words.length) {
+			    cur.words = Arrays.copyOf(cur.words, 2 * w);
+			    cur.lines = Arrays.copyOf(cur.lines, 2 * w);
 			}
+			if (cur.end == cur.start || (cur.end & 3) == 0)
+			    cur.lines[w] = lineno; // words belong to their first byte's line
+			cur.words[w] |= (b & 0xff) << (24 - 8 * (int)(cur.end & 3));
+			cur.end++;
+		}
 
-			i = line.indexOf(':');
-			if (i >= 0) {
-				String name = line.substring(0, i).trim();
-				if (name.length() == 0) {
-					err.add("Line " + (lineno+1) + ": expected label name before ':'");
-					continue;
-				}
-				Matcher m = pat_label.matcher(name);
-				if (name.equalsIgnoreCase("pc") || !m.matches()) {
-					err.add("Line " + (lineno+1) + ": illegal label name '"+name+"' before ':'");
-					continue;
+		// The runs as segments, runs that share or touch a word joined.
+		// Runs that share a byte are errors.
+		Segment[] segments(ParseException err) {
+			Run r[] = (Run[])runs.toArray(new Run[runs.size()]);
+			Arrays.sort(r, new Comparator() {
+				public int compare(Object a, Object b) {
+				    long x = ((Run)a).start, y = ((Run)b).start;
+				    return x < y ? -1 : (x == y ? 0 : 1);
 				}
-				map.put(name, new Integer(addr));
-				if (i < line.length()-1) {
-					// label: instruction
-					line = line.substring(i+1).trim();
-					lines.set(lineno, line);
-					addr_map.add(new Integer(addr));
-					addr += 4;
-				} else {
-					// label:
-					addr_map.add(null);
-					lines.set(lineno, null);
+			    });
+			ArrayList seg = new ArrayList();
+			for (int i = 0; i < r.length; ) {
+			    long first = r[i].start >>> 2, last = (r[i].end + 3) >>> 2;
+			    int j = i + 1, m = i; // r[m] ends last so far
+			    for (; j < r.length && (r[j].start >>> 2) <= last; j++) {
+				if (r[j].start < r[m].end)
+				    err.add("Data at "+toHex((int)r[j].start, 8)+".."+toHex((int)r[j].end, 8)+" overlaps with data at "+
+					    toHex((int)r[m].start, 8)+".."+toHex((int)r[m].end, 8));
+				if (r[j].end > r[m].end) m = j;
+				last = Math.max(last, (r[j].end + 3) >>> 2);
+			    }
+			    Segment s = new Segment((int)first, new int[(int)(last - first)]);
+			    for (int k = j - 1; k >= i; k--) { // lines from the first run to reach a word
+				int off = (int)((r[k].start >>> 2) - first);
+				int n = (int)(((r[k].end + 3) >>> 2) - (r[k].start >>> 2));
+				for (int w = 0; w < n; w++) {
+				    s.data[off + w] |= r[k].words[w];
+				    s.line[off + w] = r[k].lines[w];
 				}
-			} else {
-				addr_map.add(new Integer(addr));
-				addr += 4;
+			    }
+			    seg.add(s);
+			    i = j;
 			}
+			return (Segment[])seg.toArray(new Segment[seg.size()]);
+		}
+	}
+
+	// Label addresses, in an open-addressing hash table. pass1 fills it in,
+	// after which it is only read, by as many threads as encode.
+	static class SymbolTable {
+		private String keys[] = new String[64];
+		private int values[] = new int[64];
+		private int size;
+
+		int size() { return size; }
+		int capacity() { return keys.length; }
+		String key(int slot) { return keys[slot]; }
+		int value(int slot) { return values[slot]; }
+
+		// the slot holding name, or -1
+		int find(String name) {
+			int mask = keys.length - 1;
+			for (int i = hash(name) & mask; ; i = (i + 1) & mask) {
+			    String k = keys[i];
+			    if (k == null) return -1;
+			    if (k.equals(name)) return i;
+			}
+		}
+
+		void put(String name, int value) {
+			if (2 * (size + 1) > keys.length) grow();
+			int mask = keys.length - 1;
+			int i = hash(name) & mask;
+			while (keys[i] != null && !keys[i].equals(name))
+			    i = (i + 1) & mask;
+			if (keys[i] == null) size++;
+			keys[i] = name;
+			values[i] = value;
+		}
+
+		private void grow() {
+			String old_keys[] = keys;
+			int old_values[] = values;
+			keys = new String[old_keys.length * 2];
+			values = new int[old_values.length * 2];
+			size = 0;
+			for (int i = 0; i < old_keys.length; i++)
+			    if (old_keys[i] != null) put(old_keys[i], old_values[i]);
+		}
+
+		private static int hash(String name) {
+			int h = name.hashCode() * 0x9e3779b9;
+			return h ^ (h >>> 16);
 		}
-		if (err.getCount() > 0)
-		    throw err;
-		return map;
 	}
 
 	static HashMap cmds = new HashMap();
-	static HashMap opcodes = new HashMap();
-	static HashMap fcodes = new HashMap();
+	static final String REG_NAMES[] = new String[32];
+	static {
+		for (int r = 0; r < 32; r++) REG_NAMES[r] = "$" + r;
+	}
+
+	// decoders, by opcode and, for opcode 0, by function code
+	static Command opcodes[] = new Command[64];
+	static Command fcodes[] = new Command[64];
+	static Command word; // decodes whatever the others do not
 
 	// returns an n-bit number (with leading zeros for n<32).
 	// if SIGNED_ABSOLUTE, the accepted inputs are:
@@ -485,14 +1536,17 @@ class Program32 extends ManagedComponent {
 	//   - "pc" or label, minus (addr+4) (as long as this result is in the range)
 	// if ANY_ABSOLUTE, the accepted inputs are:
 	//   - anything that fits in n bits)
+	// if DATA_VALUE, the accepted inputs are:
+	//   - as SIGNED_ABSOLUTE, but with a range check of -2^(n-1)..2^n-1
 	static String SIGNED_RELATIVE = "signed pc-relative offset";
 	static String SIGNED_ABSOLUTE = "signed immediate";
 	static String UNSIGNED_ABSOLUTE = "unsigned immediate";
 	static String ANY_ABSOLUTE = "hex value";
-	static int resolve(int lineno, String imm, int addr, HashMap sym, String type, int nbits) throws IOException {
+	static String DATA_VALUE = "data value";
+	static int resolve(int lineno, String imm, int addr, SymbolTable sym, String type, int nbits) throws IOException {
 		int offset = (type == SIGNED_RELATIVE ? addr+4 : 0);
 		long min = (type == UNSIGNED_ABSOLUTE ? 0 : (-1L << (nbits-1)));
-		long max = (type == UNSIGNED_ABSOLUTE ? ((1L << nbits)-1) : ((1L << (nbits-1)) - 1));
+		long max = (type == UNSIGNED_ABSOLUTE || type == DATA_VALUE ? ((1L << nbits)-1) : ((1L << (nbits-1)) - 1));
 		int mask = (int)(1L << nbits) - 1;
 		long val;
 		try {
@@ -509,10 +1563,10 @@ class Program32 extends ManagedComponent {
 			} else if ((c == '-') || (c >= '0' && c <= '9')) {
 			    val = Long.parseLong(imm);
 			} else {
-			    Integer a = (Integer)sym.get(imm);
-			    if (a == null)
+			    int slot = sym.find(imm);
+			    if (slot < 0)
 				throw new ParseException("Line "+(lineno+1)+": expecting "+type+", but no such label or number '"+imm+"'");
-			    val = ((long)a.intValue() & 0xffffffffL) - offset;
+			    val = ((long)sym.value(slot) & 0xffffffffL) - offset;
 			    imm = imm + " ("+val+")";
 			}
 			if (type == ANY_ABSOLUTE) {
@@ -536,35 +1590,63 @@ class Program32 extends ManagedComponent {
 			opcode = op;
 			cmds.put(name, this);
 		}
-		abstract String decode(int addr, int instr) throws IOException;
-		abstract int encode(int lineno, int addr, String args, HashMap sym) throws IOException;
+		abstract void decode(int addr, int instr, StringBuilder out);
+		abstract int encode(Line line, int addr, SymbolTable sym) throws IOException;
+
+		// the number of words line assembles to; depends on line alone
+		int size(Line line) { return 1; }
+
+		// encodes line into out[off], and on for size(line) words
+		void emit(Line line, int addr, SymbolTable sym, int out[], int off) throws IOException {
+			out[off] = encode(line, addr, sym);
+		}
+
+		// the register named by operand k of line
+		int reg(Line line, int k) throws IOException {
+			if (line.value[k] >= 0)
+				return line.value[k];
+			try {
+				return Program32.reg(line.tok[k]);
+			} catch (NumberFormatException e) {
+				throw new ParseException("Line "+(line.lineno+1)+": invalid arguments to '"+name+"': "+e.getMessage());
+			}
+		}
 	}
 
+	// operand shapes
+	static final byte S_I[] = { T_IMM };
+	static final byte S_R[] = { T_REG };
+	static final byte S_RR[] = { T_REG, T_COMMA, T_REG };
+	static final byte S_RI[] = { T_REG, T_COMMA, T_IMM };
+	static final byte S_RRR[] = { T_REG, T_COMMA, T_REG, T_COMMA, T_REG };
+	static final byte S_RRI[] = { T_REG, T_COMMA, T_REG, T_COMMA, T_IMM };
+	static final byte S_MEM[] = { T_REG, T_COMMA, T_IMM, T_LPAREN, T_REG, T_RPAREN };
+
 	private static class Nop extends Command {
 	    Nop(String name, int op) { super(name, op); }
-	    String decode(int addr, int instr) throws IOException {
-		return name;
+	    void decode(int addr, int instr, StringBuilder out) {
+		out.append(name);
 	    }
-	    int encode(int lineno, int addr, String args, HashMap hashmap) throws IOException {
+	    int encode(Line line, int addr, SymbolTable sym) throws IOException {
 		return 0;
 	    }
 	}
 
-	static Pattern pat_word = Pattern.compile(_imm);
 	private static class Word extends Command {
 		Word(String name, int op) {
 			super(name, op);
-			opcodes.put(new Integer(op), this);
+			word = this;
 		}
-		int encode(int lineno, int addr, String args, HashMap sym) throws IOException {
-			Matcher m = pat_word.matcher(args);
-			if (!m.matches())
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_I))
 				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects integer argument");
-			int word = resolve(lineno, m.group(1), addr, sym, ANY_ABSOLUTE, 32);
+			int word = resolve(lineno, line.tok[0], addr, sym, ANY_ABSOLUTE, 32);
 			return word;
 		}
-		String decode(int addr, int instr) throws IOException {
-			return name+" "+toHex(instr, 8);
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name).append(' ');
+			appendHex(out, instr, 8);
 		}
 	}
 
@@ -600,126 +1682,128 @@ class Program32 extends ManagedComponent {
 	private static abstract class IType extends Command {
 		IType(String name, int op) {
 			super(name, op);
-			opcodes.put(new Integer(op), this);
+			opcodes[op] = this;
 		}
-		int encode(String rd, String rs, int imm, int lineno) throws IOException {
-			try {
-				int dest = reg(rd);
-				int src = reg(rs);
-				imm = imm & 0x0000ffff;
-				if ((dest & 0x1f) != dest)
-					throw new ParseException("Line "+(lineno+1)+": invalid destination register: $"+dest);
-				if ((src & 0x1f) != src)
-					throw new ParseException("Line "+(lineno+1)+": invalid source register: $"+src);
-				return (opcode << 26) | (src << 21) | (dest << 16) | imm;
-			} catch (NumberFormatException e) {
-				throw new ParseException("Line "+(lineno+1)+": invalid arguments to '"+name+"': "+e.getMessage());
-			}
+		int encode(int dest, int src, int imm, int lineno) throws IOException {
+			imm = imm & 0x0000ffff;
+			if ((dest & 0x1f) != dest)
+				throw new ParseException("Line "+(lineno+1)+": invalid destination register: $"+dest);
+			if ((src & 0x1f) != src)
+				throw new ParseException("Line "+(lineno+1)+": invalid source register: $"+src);
+			return (opcode << 26) | (src << 21) | (dest << 16) | imm;
 		}
-		String rD(int instr) { return "$"+((instr >> 16)&0x1f); }
-		String rS(int instr) { return "$"+((instr >> 21)&0x1f); }
-		String sImm(int instr) { return toHex(instr & 0x0000ffff, 4); }
+		void rD(StringBuilder out, int instr) { out.append(REG_NAMES[(instr >> 16)&0x1f]); }
+		void rS(StringBuilder out, int instr) { out.append(REG_NAMES[(instr >> 21)&0x1f]); }
+		void sImm(StringBuilder out, int instr) { appendHex(out, instr & 0x0000ffff, 4); }
 	}
 
-	static Pattern pat_arith_imm = Pattern.compile(_reg+","+_reg+","+_imm);
 	private static class ArithImm extends IType {
 		String itype;
 		ArithImm(String name, int op, boolean signed) { super(name, op); this.itype = (signed ? SIGNED_ABSOLUTE : UNSIGNED_ABSOLUTE); }
-		int encode(int lineno, int addr, String args, HashMap sym) throws IOException {
-			Matcher m = pat_arith_imm.matcher(args);
-			if (!m.matches())
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_RRI))
 				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects $D, $S, "+itype);
-			int imm = resolve(lineno, m.group(3), addr, sym, itype, 16);
-			return encode(m.group(1), m.group(2), imm, lineno);
+			int imm = resolve(lineno, line.tok[4], addr, sym, itype, 16);
+			return encode(reg(line, 0), reg(line, 2), imm, lineno);
 		}
-		String decode(int addr, int instr) throws IOException {
-			return name+" "+rD(instr)+", "+rS(instr)+", "+sImm(instr);
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name).append(' ');
+			rD(out, instr); out.append(", ");
+			rS(out, instr); out.append(", ");
+			sImm(out, instr);
 		}
 	}
 
-	static Pattern pat_lui = Pattern.compile(_reg+","+_imm);
 	private static class Lui extends IType {
 		Lui(String name, int op) { super(name, op); }
-		int encode(int lineno, int addr, String args, HashMap sym) throws IOException {
-			Matcher m = pat_lui.matcher(args);
-			if (!m.matches())
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_RI))
 				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects $D, imm");
-			int imm = resolve(lineno, m.group(2), addr, sym, ANY_ABSOLUTE, 16);
-			return encode(m.group(1), "0", imm, lineno);
+			int imm = resolve(lineno, line.tok[2], addr, sym, ANY_ABSOLUTE, 16);
+			return encode(reg(line, 0), 0, imm, lineno);
 		}
-		String decode(int addr, int instr) throws IOException {
-			return name+" "+rD(instr)+", "+sImm(instr);
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name).append(' ');
+			rD(out, instr); out.append(", ");
+			sImm(out, instr);
 		}
 	}
 
-	static Pattern pat_mem = Pattern.compile(_reg+","+_imm+"\\s*\\("+_reg+"\\)");
 	private static class Mem extends IType {
 		Mem(String name, int op) { super(name, op); }
-		int encode(int lineno, int addr, String args, HashMap sym) throws IOException {
-			Matcher m = pat_mem.matcher(args);
-			if (!m.matches())
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_MEM))
 				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects $D, signed_imm($S)");
-			int imm = resolve(lineno, m.group(2), addr, sym, SIGNED_ABSOLUTE, 16);
-			return encode(m.group(1), m.group(3), imm, lineno);
+			int imm = resolve(lineno, line.tok[2], addr, sym, SIGNED_ABSOLUTE, 16);
+			return encode(reg(line, 0), reg(line, 4), imm, lineno);
 		}
-		String decode(int addr, int instr) throws IOException {
-			return name+" "+rD(instr)+", "+sImm(instr)+"("+rS(instr)+")";
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name).append(' ');
+			rD(out, instr); out.append(", ");
+			sImm(out, instr); out.append('(');
+			rS(out, instr); out.append(')');
 		}
 	}
 
-	static Pattern pat_br = Pattern.compile(_reg+","+_reg+","+_imm);
 	private static class Br extends IType {
 		Br(String name, int op) { super(name, op); }
-		int encode(int lineno, int addr, String args, HashMap sym) throws IOException {
-			Matcher m = pat_br.matcher(args);
-			if (!m.matches())
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_RRI))
 				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects offset or label");
-			int offset = resolve(lineno, m.group(3), addr, sym, SIGNED_RELATIVE, 18);
+			int offset = resolve(lineno, line.tok[4], addr, sym, SIGNED_RELATIVE, 18);
 			if ((offset & 0x3) != 0)
 				throw new ParseException("Line "+(lineno+1)+": mis-aligned offset in '"+name+"'");
-			return encode(m.group(2), m.group(1), offset >> 2, lineno);
+			return encode(reg(line, 2), reg(line, 0), offset >> 2, lineno);
 		}
-		String decode(int addr, int instr) throws IOException {
-			return name+" "+rS(instr)+", "+rD(instr)+", "+sImm(instr<<2);
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name).append(' ');
+			rS(out, instr); out.append(", ");
+			rD(out, instr); out.append(", ");
+			sImm(out, instr<<2);
 		}
 	}
 
-	static Pattern pat_bz = Pattern.compile(_reg+","+_imm);
 	private static class Bz extends IType {
 		Bz(String name, int op) { super(name, op); }
-		int encode(int lineno, int addr, String args, HashMap sym) throws IOException {
-			Matcher m = pat_bz.matcher(args);
-			if (!m.matches())
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_RI))
 				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects offset or label");
-			int offset = resolve(lineno, m.group(2), addr, sym, SIGNED_RELATIVE, 18);
+			int offset = resolve(lineno, line.tok[2], addr, sym, SIGNED_RELATIVE, 18);
 			if ((offset & 0x3) != 0)
 				throw new ParseException("Line "+(lineno+1)+": mis-aligned offset in '"+name+"'");
-			return encode("0", m.group(1), offset >> 2, lineno);
+			return encode(0, reg(line, 0), offset >> 2, lineno);
 		}
-		String decode(int addr, int instr) throws IOException {
-			return name+" "+rS(instr)+", "+sImm(instr<<2);
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name).append(' ');
+			rS(out, instr); out.append(", ");
+			sImm(out, instr<<2);
 		}
 	}
 
-	static Pattern pat_j0 = Pattern.compile(_imm);
 	private static class J extends Command {
 		J(String name, int op) {
 			super(name, op);
-			opcodes.put(new Integer(op), this);
+			opcodes[op] = this;
 		}
-		int encode(int lineno, int addr, String args, HashMap sym) throws IOException {
-			Matcher m = pat_j0.matcher(args);
-			if (!m.matches())
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_I))
 				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects address or label");
-			int absaddr = resolve(lineno, m.group(1), addr, sym, UNSIGNED_ABSOLUTE, 32);
+			int absaddr = resolve(lineno, line.tok[0], addr, sym, UNSIGNED_ABSOLUTE, 32);
 			if ((absaddr & 0x3) != 0)
 				throw new ParseException("Line "+(lineno+1)+": mis-aligned address in '"+name+"'");
 			if ((absaddr & 0xf0000000) != ((addr+4) & 0xf0000000))
 				throw new ParseException("Line "+(lineno+1)+": overflow in address in '"+name+"': can't jump from "+toHex(addr, 8)+" to " + toHex(absaddr, 8));
 			return (opcode << 26) | ((absaddr>>2) & 0x03ffffff);
 		}
-		String decode(int addr, int instr) throws IOException {
-			return name+" "+toHex(((addr+4)&0xf0000000)|((instr & 0x03ffffff)<<2), 8);
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name).append(' ');
+			appendHex(out, ((addr+4)&0xf0000000)|((instr & 0x03ffffff)<<2), 8);
 		}
 	}
 
@@ -728,114 +1812,206 @@ class Program32 extends ManagedComponent {
 		RType(String name, int zero, int f) {
 			super(name, 0);
 			this.f = f;
-			fcodes.put(new Integer(f), this);
+			fcodes[f] = this;
 		}
-		int encode(String rd, String rs, String rt, int sa, int lineno) throws IOException {
-			try {
-				int dest = reg(rd);
-				int src = reg(rs);
-				int trg = reg(rt);
-				if ((dest & 0x1f) != dest)
-					throw new ParseException("Line "+(lineno+1)+": invalid destination register: $"+dest);
-				if ((src & 0x1f) != src)
-					throw new ParseException("Line "+(lineno+1)+": invalid source1 register: $"+src);
-				if ((trg & 0x1f) != trg)
-					throw new ParseException("Line "+(lineno+1)+": invalid source2 register: $"+trg);
-				if ((sa & 0x1f) != sa)
-					throw new ParseException("Line "+(lineno+1)+": invalid shift amount: "+sa);
-				return (opcode << 26) | (src << 21) | (trg << 16) | (dest << 11) | (sa << 6) | f;
-			} catch (NumberFormatException e) {
-				throw new ParseException("Line "+(lineno+1)+": invalid arguments to '"+name+"': "+e.getMessage());
-			}
+		int encode(int dest, int src, int trg, int sa, int lineno) throws IOException {
+			if ((dest & 0x1f) != dest)
+				throw new ParseException("Line "+(lineno+1)+": invalid destination register: $"+dest);
+			if ((src & 0x1f) != src)
+				throw new ParseException("Line "+(lineno+1)+": invalid source1 register: $"+src);
+			if ((trg & 0x1f) != trg)
+				throw new ParseException("Line "+(lineno+1)+": invalid source2 register: $"+trg);
+			if ((sa & 0x1f) != sa)
+				throw new ParseException("Line "+(lineno+1)+": invalid shift amount: "+sa);
+			return (opcode << 26) | (src << 21) | (trg << 16) | (dest << 11) | (sa << 6) | f;
 		}
-		String rD(int instr) { return "$"+((instr >> 11)&0x1f); }
-		String rS(int instr) { return "$"+((instr >> 21)&0x1f); }
-		String rT(int instr) { return "$"+((instr >> 16)&0x1f); }
-		String sSa(int instr) { return ""+((instr >> 6)&0x1f); }
+		void rD(StringBuilder out, int instr) { out.append(REG_NAMES[(instr >> 11)&0x1f]); }
+		void rS(StringBuilder out, int instr) { out.append(REG_NAMES[(instr >> 21)&0x1f]); }
+		void rT(StringBuilder out, int instr) { out.append(REG_NAMES[(instr >> 16)&0x1f]); }
+		void sSa(StringBuilder out, int instr) { out.append((instr >> 6)&0x1f); }
 	}
 
-	static Pattern pat_arith_reg = Pattern.compile(_reg+","+_reg+","+_reg);
 	private static class ArithReg extends RType {
 		ArithReg(String name, int zero, int f) { super(name, zero, f); }
-		int encode(int lineno, int addr, String args, HashMap sym) throws IOException {
-			Matcher m = pat_arith_reg.matcher(args);
-			if (!m.matches())
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_RRR))
 				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects $D, $S, $T");
-			return encode(m.group(1), m.group(2), m.group(3), 0, lineno);
+			return encode(reg(line, 0), reg(line, 2), reg(line, 4), 0, lineno);
 		}
-		String decode(int addr, int instr) throws IOException {
-			return name+" "+rD(instr)+", "+rS(instr)+", "+rT(instr);
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name).append(' ');
+			rD(out, instr); out.append(", ");
+			rS(out, instr); out.append(", ");
+			rT(out, instr);
 		}
 	}
 
-	static Pattern pat_shift_c = Pattern.compile(_reg+","+_reg+","+_imm);
 	private static class ShiftConstant extends RType {
 		ShiftConstant(String name, int zero, int f) { super(name, zero, f); }
-		int encode(int lineno, int addr, String args, HashMap sym) throws IOException {
-			Matcher m = pat_shift_c.matcher(args);
-			if (!m.matches())
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_RRI))
 				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects $D, $T, sa");
-			int sa = resolve(lineno, m.group(3), addr, sym, UNSIGNED_ABSOLUTE, 5);
-			return encode(m.group(1), "0", m.group(2), sa, lineno);
+			int sa = resolve(lineno, line.tok[4], addr, sym, UNSIGNED_ABSOLUTE, 5);
+			return encode(reg(line, 0), 0, reg(line, 2), sa, lineno);
 		}
-		String decode(int addr, int instr) throws IOException {
-			return name+" "+rD(instr)+", "+rT(instr)+", "+sSa(instr);
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name).append(' ');
+			rD(out, instr); out.append(", ");
+			rT(out, instr); out.append(", ");
+			sSa(out, instr);
 		}
 	}
 
-	static Pattern pat_shift_v = Pattern.compile(_reg+","+_reg+","+_reg);
 	private static class ShiftVariable extends RType {
 		ShiftVariable(String name, int zero, int f) { super(name, zero, f); }
-		int encode(int lineno, int addr, String args, HashMap sym) throws IOException {
-			Matcher m = pat_shift_v.matcher(args);
-			if (!m.matches())
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_RRR))
 				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects $D, $T, $S");
-			return encode(m.group(1), m.group(3), m.group(2), 0, lineno);
+			return encode(reg(line, 0), reg(line, 4), reg(line, 2), 0, lineno);
 		}
-		String decode(int addr, int instr) throws IOException {
-			return name+" "+rD(instr)+", "+rT(instr)+", "+rS(instr);
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name).append(' ');
+			rD(out, instr); out.append(", ");
+			rT(out, instr); out.append(", ");
+			rS(out, instr);
 		}
 	}
 
-	static Pattern pat_jr = Pattern.compile(_reg);
 	private static class Jr extends RType {
 		Jr(String name, int zero, int f) { super(name, zero, f); }
-		int encode(int lineno, int addr, String args, HashMap sym) throws IOException {
-			Matcher m = pat_jr.matcher(args);
-			if (!m.matches())
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_R))
 				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects $S");
-			return encode("0", m.group(1), "0", 0, lineno);
+			return encode(0, reg(line, 0), 0, 0, lineno);
 		}
-		String decode(int addr, int instr) throws IOException {
-			return name+" "+rS(instr);
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name).append(' ');
+			rS(out, instr);
 		}
 	}
 
-	static Pattern pat_jalr = Pattern.compile(_reg + "(?:," + _reg + ")?");
 	private static class Jalr extends RType {
 	    Jalr(String name, int zero, int f) { super(name, zero, f); }
-	    int encode(int lineno, int addr, String args, HashMap sym) throws IOException
+	    int encode(Line line, int addr, SymbolTable sym) throws IOException
 	    {
-		Matcher m = Program32.pat_jalr.matcher(args);
-		if(!m.matches()) {
-		    throw new ParseException("Line " + (lineno + 1) + ": '" + name + "' expects $S");
+		int lineno = line.lineno;
+		if(line.matches(S_RR)) {
+		    return encode(reg(line, 0), reg(line, 2), 0, 0, lineno);
+		} else if(line.matches(S_R)) {
+		    return encode(31, reg(line, 0), 0, 0, lineno);
 		} else {
-		    boolean haveOpt = m.group(2) != null;
-		    String rd = haveOpt ? m.group(1) : "31";
-		    String rs = m.group(haveOpt ? 2 : 1);
-		    return encode(rd, rs, "0", 0, lineno);
+		    throw new ParseException("Line " + (lineno + 1) + ": '" + name + "' expects $S");
 		}
 	    }
 
-	    String decode(int addr, int instr) throws IOException
+	    void decode(int addr, int instr, StringBuilder out)
 	    {
-		if("31".equals(rD(instr)))
-		    return name + " " + rS(instr);
-		else
-		    return name + " " + rD(instr) + ", " + rS(instr);
+		out.append(name).append(' ');
+		rD(out, instr); out.append(", ");
+		rS(out, instr);
 	    }
 	}
 
+	// Pseudo-instructions, each assembled to one or two real ones.
+	private static abstract class Pseudo extends Command {
+		Pseudo(String name) { super(name, -1); }
+		void decode(int addr, int instr, StringBuilder out) {
+			out.append(name);
+		}
+		static IType itype(String name) { return (IType)cmds.get(name); }
+		static RType rtype(String name) { return (RType)cmds.get(name); }
+
+		// operand k of line as a branch offset, in words
+		int offset(Line line, int k, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			int offset = resolve(lineno, line.tok[k], addr, sym, SIGNED_RELATIVE, 18);
+			if ((offset & 0x3) != 0)
+				throw new ParseException("Line "+(lineno+1)+": mis-aligned offset in '"+name+"'");
+			return offset >> 2;
+		}
+	}
+
+	// li $D, imm: addiu or ori when imm is a number that fits, lui and
+	// ori otherwise
+	private static class Li extends Pseudo {
+		IType addiu = itype("addiu"), ori = itype("ori"), lui = itype("lui");
+		Li(String name) { super(name); }
+		int size(Line line) {
+			if (!line.matches(S_RI) || line.kind[2] != T_NUM) return 2;
+			try {
+				int v = resolve(line.lineno, line.tok[2], 0, null, ANY_ABSOLUTE, 32);
+				return (v >= -32768 && v <= 65535) ? 1 : 2;
+			} catch (IOException e) {
+				return 1; // reported by emit
+			}
+		}
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int out[] = new int[2];
+			emit(line, addr, sym, out, 0);
+			return out[0];
+		}
+		void emit(Line line, int addr, SymbolTable sym, int out[], int off) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_RI))
+				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects $D, imm");
+			int v = resolve(lineno, line.tok[2], addr, sym, ANY_ABSOLUTE, 32);
+			int d = reg(line, 0);
+			if (size(line) == 1) {
+				out[off] = (v <= 32767) ? addiu.encode(d, 0, v, lineno) : ori.encode(d, 0, v, lineno);
+			} else {
+				out[off] = lui.encode(d, 0, v >>> 16, lineno);
+				out[off+1] = ori.encode(d, d, v, lineno);
+			}
+		}
+	}
+
+	// la $D, label: always lui and ori
+	private static class La extends Li {
+		La(String name) { super(name); }
+		int size(Line line) { return 2; }
+	}
+
+	// move $D, $S: addu $D, $S, $0
+	private static class Move extends Pseudo {
+		RType addu = rtype("addu");
+		Move(String name) { super(name); }
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_RR))
+				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects $D, $S");
+			return addu.encode(reg(line, 0), reg(line, 2), 0, 0, lineno);
+		}
+	}
+
+	// b label: beq $0, $0, label
+	private static class B extends Pseudo {
+		IType beq = itype("beq");
+		B(String name) { super(name); }
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_I))
+				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects offset or label");
+			return beq.encode(0, 0, offset(line, 0, addr, sym), lineno);
+		}
+	}
+
+	// beqz $S, label and bnez $S, label: beq or bne $S, $0, label
+	private static class Bz0 extends Pseudo {
+		IType br;
+		Bz0(String name, String real) { super(name); br = itype(real); }
+		int encode(Line line, int addr, SymbolTable sym) throws IOException {
+			int lineno = line.lineno;
+			if (!line.matches(S_RI))
+				throw new ParseException("Line "+(lineno+1)+": '"+name+"' expects $S, offset or label");
+			int offset = offset(line, 2, addr, sym);
+			return br.encode(0, reg(line, 0), offset, lineno);
+		}
+	}
+
 	static {
 		new Word(".word", -1);
 		new Nop("nop", 0x0);
@@ -875,31 +2051,254 @@ class Program32 extends ManagedComponent {
 		new ShiftVariable("srav", 0, 0x07);
 		new Jr("jr", 0, 0x08);
 		new Jalr("jalr", 0, 0x09);
+		new Li("li");
+		new La("la");
+		new Move("move");
+		new B("b");
+		new Bz0("beqz", "beq");
+		new Bz0("bnez", "bne");
+	}
+
+	static final String NOP_TEXT = disassemble(NO_OP, 0);
+	static final String NOP_BINARY = StringUtil.toHexString(32, NO_OP);
+
+	// Everything one assembly found out about a source, kept so that the
+	// next assembly of an edited version can reuse it.
+	static class Assembly {
+		String src;
+		int start_address;
+		ArrayList src_lines;
+		int addr_map[];
+		Line lines[];	// as lexed, null where blank
+		Line prog[];	// the statements, once expanded
+		SymbolTable sym;
+		Segment seg[];
+		Data data;
+		int addr[];	// address of each one-word instruction line, or NO_ADDRESS
+		int word[];	// and its encoding
+	}
+
+	// Assembles src. Lines that src has in common with the start or end of
+	// prev's source are not lexed again, and keep their encoding if their
+	// address and the labels they use are unchanged.
+	static Assembly assemble(String src, int start_address, Assembly prev) throws IOException {
+		Assembly a = new Assembly();
+		a.src = src;
+		a.start_address = start_address;
+		a.src_lines = splitLines(src);
+		int n = a.src_lines.size();
+		int from[] = new int[n]; // line of prev that each line repeats, or -1
+		Arrays.fill(from, -1);
+		if (prev != null && prev.start_address == start_address) {
+		    int m = prev.src_lines.size();
+		    int p = 0;
+		    while (p < n && p < m && a.src_lines.get(p).equals(prev.src_lines.get(p)))
+			p++;
+		    int q = 0;
+		    while (q < n - p && q < m - p && a.src_lines.get(n-1-q).equals(prev.src_lines.get(m-1-q)))
+			q++;
+		    for (int i = 0; i < p; i++) from[i] = i;
+		    for (int i = 0; i < q; i++) from[n-1-i] = m-1-i;
+		}
+
+		Lexer lexer = new Lexer();
+		a.lines = new Line[n];
+		for (int i = 0; i < n; i++) {
+		    if (from[i] >= 0)
+			a.lines[i] = prev.lines[from[i]] == null ? null : prev.lines[from[i]].at(i);
+		    else
+			a.lines[i] = lexer.lex((String)a.src_lines.get(i), i);
+		}
+		Expander expander = new Expander(lexer);
+		a.prog = expander.expand(a.lines);
+		a.addr_map = new int[n];
+		a.data = new Data();
+		a.sym = pass1(a.prog, start_address, a.addr_map, a.data, expander.err);
+
+		HashSet moved = new HashSet(); // labels whose address changed
+		if (prev != null) {
+		    for (int i = 0; i < a.sym.capacity(); i++) {
+			String name = a.sym.key(i);
+			if (name == null) continue;
+			int j = prev.sym.find(name);
+			if (j < 0 || prev.sym.value(j) != a.sym.value(i)) moved.add(name);
+		    }
+		    for (int j = 0; j < prev.sym.capacity(); j++) {
+			String name = prev.sym.key(j);
+			if (name != null && a.sym.find(name) < 0) moved.add(name);
+		    }
+		}
+		a.seg = pass2(a, prev, from, moved);
+		return a;
 	}
 
-	static Segment[] pass2(ArrayList lines, int start_address, HashMap sym) throws IOException {
+	// Encodes the statements of an assembly once pass2 has placed them,
+	// splitting large sources across the common fork/join pool. Every
+	// statement is encoded on its own against the finished symbol table,
+	// and the errors are collected in line order.
+	static class Encoder extends RecursiveAction {
+		static int CHUNK = 4096; // statements encoded without splitting further
+
+		private Assembly a, prev;
+		private int from[];
+		private HashSet moved;
+		private SymbolTable sym;
+		private Segment in[];
+		private int slot[], at[];
+		private int lo, hi;
 		ParseException err = new ParseException();
+
+		Encoder(Assembly a, Assembly prev, int from[], HashSet moved, Segment in[], int slot[], int at[]) {
+			this.a = a;
+			this.prev = prev;
+			this.from = from;
+			this.moved = moved;
+			this.sym = a.sym;
+			this.in = in;
+			this.slot = slot;
+			this.at = at;
+			this.lo = 0;
+			this.hi = a.prog.length;
+		}
+
+		private Encoder(Encoder parent, int lo, int hi) {
+			a = parent.a;
+			prev = parent.prev;
+			from = parent.from;
+			moved = parent.moved;
+			sym = parent.sym;
+			in = parent.in;
+			slot = parent.slot;
+			at = parent.at;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo > CHUNK) {
+			    int mid = (lo + hi) >>> 1;
+			    Encoder left = new Encoder(this, lo, mid);
+			    Encoder right = new Encoder(this, mid, hi);
+			    invokeAll(left, right);
+			    err = left.err;
+			    err.add(right.err);
+			    return;
+			}
+			for (int k = lo; k < hi; k++) {
+			    Line line = a.prog[k];
+			    if (line.op == null || line.text || a.data.in[k]) continue;
+			    int lineno = line.lineno;
+			    if (line.cmd == null && line.body == null) {
+				err.add("Line " + (lineno+1)+": unrecognized instruction: '"+line.op+"'");
+				continue;
+			    }
+			    int addr = at[k];
+			    try {
+				if (line.body != null) {
+				    if (line.size > 0) encode(line, addr, sym, in[k].data, slot[k]);
+				} else if (a.addr[lineno] == addr) {
+				    int j = from[lineno];
+				    int word;
+				    if (j >= 0 && prev.addr[j] == addr && !line.dependsOn(moved))
+					word = prev.word[j];
+				    else
+					word = line.cmd.encode(line, addr, sym);
+				    in[k].data[slot[k]] = word;
+				    a.word[lineno] = word;
+				} else {
+				    line.cmd.emit(line, addr, sym, in[k].data, slot[k]);
+				}
+			    } catch (ParseException e) {
+				err.add(e);
+			    } catch (IOException e) {
+				err.add("Line " + (lineno+1)+": "+e.getMessage());
+			    }
+			}
+		}
+
+		// Encodes every repetition of a block into out from off, each
+		// at its own address. The first error ends the block.
+		static void encode(Line block, int addr, SymbolTable sym, int out[], int off) throws IOException {
+			for (int r = 0; r < block.count; r++) {
+			    for (int k = 0; k < block.body.length; k++) {
+				Line line = block.body[k];
+				int n = line.words();
+				if (line.body != null) {
+				    if (n > 0) encode(line, addr, sym, out, off);
+				} else {
+				    line.cmd.emit(line, addr, sym, out, off);
+				}
+				addr += 4 * n;
+				off += n;
+			    }
+			}
+		}
+	}
+
+	// Records the source line of each word of a statement in dst, from
+	// off, and returns the number of words.
+	static int sourceLines(Line line, int dst[], int off) {
+		if (line.body == null) {
+			int n = line.words();
+			Arrays.fill(dst, off, off + n, line.lineno);
+			return n;
+		}
+		if (line.size == 0)
+			return 0;
+		int start = off;
+		for (int k = 0; k < line.body.length; k++)
+			off += sourceLines(line.body[k], dst, off);
+		int n = off - start;
+		for (int r = 1; r < line.count; r++)
+			System.arraycopy(dst, start, dst, start + r * n, n);
+		return line.size;
+	}
+
+	static Segment[] pass2(Assembly a, Assembly prev, int from[], HashSet moved) throws IOException {
+		Line prog[] = a.prog;
+		int start_address = a.start_address;
+		a.addr = new int[a.lines.length];
+		a.word = new int[a.lines.length];
+		Arrays.fill(a.addr, NO_ADDRESS);
+		ParseException err = new ParseException();
+		a.data.seg = encodeData(a, err);
 		int addr = start_address;
 		int cnt = 0;
 		ArrayList seglist = new ArrayList();
+		Segment line_seg[] = new Segment[prog.length]; // segment each .text opens
 		int pc = start_address >>> 2;
-		for (int lineno = 0; lineno < lines.size(); lineno++) {
-			String line = (String)lines.get(lineno);
-			if (line == null) continue;
-			if (line.toLowerCase().startsWith(".text ")) {
-			    if (cnt > 0)
-				seglist.add(new Segment(pc, new int[cnt]));
+		int opened = -1; // statement of the last .text, -1 for the start
+		Segment first = null;
+		for (int k = 0; k < prog.length; k++) {
+			Line line = prog[k];
+			if (line.op == null || a.data.in[k]) continue;
+			if (line.text) {
+			    if (line.kind.length == 0) continue; // text goes on
+			    if (cnt > 0) {
+				Segment s = new Segment(pc, new int[cnt]);
+				seglist.add(s);
+				if (opened < 0) first = s;
+				else line_seg[opened] = s;
+			    }
 			    cnt = 0;
-			    pc = parseSegmentAddress(lineno, line.substring(line.indexOf(' ')+1)) >>> 2;
+			    pc = parseSegmentAddress(line.lineno, line.args()) >>> 2;
+			    opened = k;
 			} else {
-			    cnt++;
+			    cnt += line.words();
 			}
 		}
-		if (cnt > 0)
-		    seglist.add(new Segment(pc, new int[cnt]));
+		if (cnt > 0) {
+		    Segment s = new Segment(pc, new int[cnt]);
+		    seglist.add(s);
+		    if (opened < 0) first = s;
+		    else line_seg[opened] = s;
+		}
 		Segment[] seg = new Segment[seglist.size()];
-		if (seg.length == 0)
+		if (seg.length == 0) {
+		    if (err.getCount() > 0)
+			throw err;
 		    return seg;
+		}
 		for (int s = 0; s < seg.length; s++) {
 		    seg[s] = (Segment)seglist.get(s);
 		    for (int s2 = 0; s2 < s; s2++) {
@@ -910,87 +2309,78 @@ class Program32 extends ManagedComponent {
 		    }
 		}
 
-		int cs = 0;
+		// place every statement, then encode them all independently
+		Segment in[] = line_seg; // from here on, the segment of each statement
+		int slot[] = new int[prog.length];
+		int at[] = new int[prog.length];
+		Segment cs = first;
 		cnt = 0;
-		for (int lineno = 0; lineno < lines.size(); lineno++) {
-			String line = (String)lines.get(lineno);
-			if (line == null) continue;
-			int i = line.indexOf(' ');
-			String instr = i >= 0 ? line.substring(0, i) : line;
-			String args = i >= 0 ? line.substring(i+1) : "";
-			if (instr.equalsIgnoreCase(".text")) {
-			    cs = -1;
-			    pc = parseSegmentAddress(lineno, line.substring(line.indexOf(' ')+1)) >>> 2;
-			    addr = pc << 2;
+		for (int k = 0; k < prog.length; k++) {
+			Line line = prog[k];
+			if (line.op == null || a.data.in[k]) continue;
+			if (line.text) {
+			    if (line.kind.length == 0) continue;
+			    cs = line_seg[k];
+			    if (cs != null) addr = cs.start_pc << 2;
 			    cnt = 0;
-			    for (int s = 0; s < seg.length; s++) {
-				if (seg[s].start_pc == pc) {
-				    cs = s;
-				    break;
-				}
-			    }
-			    if (cs < 0)
-				    err.add("Line " + (lineno+1)+": internal error: bad segment");
-			} else {
-			    Command cmd = (Command)cmds.get(instr.toLowerCase());
-			    if (cmd == null) {
-				    err.add("Line " + (lineno+1)+": unrecognized instruction: '"+instr+"'");
-			    } else if (cs >= 0) {
-				try {
-				    seg[cs].data[cnt++] = cmd.encode(lineno, addr, args, sym);
-				} catch (ParseException e) {
-				    err.add(e);
-				}
-				addr += 4;
-			    }
+			} else if (line.cmd != null || line.body != null) {
+			    int n = line.words();
+			    in[k] = cs;
+			    slot[k] = cnt;
+			    at[k] = addr;
+			    if (n > 0) sourceLines(line, cs.line, cnt);
+			    if (line.body == null && n == 1) a.addr[line.lineno] = addr;
+			    cnt += n;
+			    addr += 4 * n;
 			}
 		}
+		Encoder encoder = new Encoder(a, prev, from, moved, in, slot, at);
+		if (prog.length <= Encoder.CHUNK)
+		    encoder.compute();
+		else
+		    ForkJoinPool.commonPool().invoke(encoder);
+		err.add(encoder.err);
 		if (err.getCount() > 0)
 		    throw err;
+		Arrays.sort(seg, new Comparator() {
+			public int compare(Object a, Object b) {
+			    int x = ((Segment)a).start_pc, y = ((Segment)b).start_pc;
+			    return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		    });
 		return seg;
 	}
 
-	static Segment[] assemble(ArrayList src_lines, int start_address, ArrayList addr_map) throws IOException {
-		ArrayList lines = normalize(src_lines);
-		HashMap sym = pass1(lines, start_address, addr_map);
-		return pass2(lines, start_address, sym);
+	static Command command(int instr) {
+		int op = (instr >>> 26);
+		return op == 0 ? fcodes[instr & 0x3f] : opcodes[op];
 	}
 
 	static String disassemble(int code[], int start_addr) throws IOException {
-		StringBuffer buf = new StringBuffer();
+		StringBuilder buf = new StringBuilder();
 		for (int i = 0; i < code.length; i++) {
 			int instr = code[i];
-			int op = (instr >> 26) & 0x3f;
-			Command cmd;
-			if (op == 0) {
-				int f = (instr & 0x3f);
-				cmd = (Command)fcodes.get(new Integer(f));
-			} else {
-				cmd = (Command)opcodes.get(new Integer(op));
-			}
+			Command cmd = command(instr);
 			if (cmd == null)
 				throw new ParseException("Instruction " + (i+1)+" unrecognized: "+toHex(instr, 8));
-			buf.append(cmd.decode(start_addr+4*i, instr)+"\n");
+			cmd.decode(start_addr+4*i, instr, buf);
+			buf.append('\n');
 		}
 		return buf.toString();
 	}
 
 	static String disassemble(int instr, int addr) {
-		int op = (instr >> 26) & 0x3f;
-		Command cmd;
-		if (op == 0) {
-			int f = (instr & 0x3f);
-			cmd = (Command)fcodes.get(new Integer(f));
-		} else {
-			cmd = (Command)opcodes.get(new Integer(op));
-		}
-		if (cmd == null)
-		    cmd = (Command)opcodes.get(new Integer(-1));
-		try {
-			return cmd.decode(addr, instr);
-		} catch (IOException e) {
-			return "??? <"+toHex(instr, 8)+">";
-		}
+		StringBuilder buf = new StringBuilder(32);
+		decode(instr, addr, buf);
+		return buf.toString();
+	}
+
+	// appends the disassembly of instr, found at addr, to out; words
+	// that are no instruction come out as .word
+	static void decode(int instr, int addr, StringBuilder out) {
+		Command cmd = command(instr);
+		if (cmd == null) cmd = word;
+		cmd.decode(addr, instr, out);
 	}
 
 	Project proj;
@@ -998,6 +2388,8 @@ class Program32 extends ManagedComponent {
 
 	class State implements ComponentState, Cloneable {
 		Listing code;
+		CircuitState circuitState; // the one this is the state in
+		volatile boolean dataLoaded; // whether the RAMs have the data section of code
 		public int pc;
 		public static final int PC_UNDEFINED = -1;
 		public static final int PC_ERROR = -2;
@@ -1007,17 +2399,23 @@ class Program32 extends ManagedComponent {
 		public Project getProject() { return proj; }
 		public void setProject(Project p) { proj = p; }
 
+		// Called on the event thread; the new output and data are left to
+		// the next propagation, on the simulator's thread.
 		public void codeChanged() {
-			if (proj != null) propagate(proj.getCircuitState());
+			dataLoaded = false;
+			if (proj != null && circuitState != null) {
+			    circuitState.markComponentAsDirty(Program32.this);
+			    proj.getSimulator().requestPropagate();
+			}
 		}
 
-		String decode(int i) { return disassemble(code.instr(i), 4*i); }
+		String decode(int i) { return code.textAt(i); }
 
 		Value instr() {
 		    if (isValidPC())
-			return Value.createKnown(OP_WIDTH, code.instr(pc));
+			return code.instrValue(pc);
 		    else
-			return Value.createError(OP_WIDTH);
+			return ERROR_OP;
 		}
 
 		boolean haveCodeFor(int i) { return code.segmentOf(i) != null; }
@@ -1045,6 +2443,10 @@ class Program32 extends ManagedComponent {
 
     public void propagate(CircuitState circuitState) {
 	State state = getState(circuitState);
+	if (!state.dataLoaded) {
+	    state.dataLoaded = true;
+	    loadData(circuitState, state.code);
+	}
 	state.update(val(circuitState, P_PC));
 	circuitState.setValue(loc(P_OP), state.instr(), this, 9);
     }
@@ -1053,11 +2455,32 @@ class Program32 extends ManagedComponent {
         State state = (State) circuitState.getData(this);
         if (state == null) {
             state = new State(getCode());
+            state.circuitState = circuitState;
             circuitState.setData(this, state);
         }
         return state;
     }
 
+    // Stores the data section of code into the RAMs of circuitState's
+    // circuit, on the first propagation after a reset or a change of code.
+    // Each RAM loaded is marked dirty, as one that propagated earlier in
+    // this step still drives a word it read before.
+    void loadData(CircuitState circuitState, Listing code) {
+        Segment data[] = code.data_seg;
+        Circuit circuit = circuitState.getCircuit();
+        if (data.length == 0 || circuit == null || !circuit.contains(this)) return;
+        Iterator it = circuit.getNonWires().iterator();
+        while (it.hasNext()) {
+            Component comp = (Component)it.next();
+            if (comp.getFactory() instanceof Ram) {
+                Instance instance = Instance.getInstanceFor(comp);
+                if (instance != null
+                        && ((Ram)comp.getFactory()).loadProgramData(instance, circuitState, data))
+                    circuitState.markComponentAsDirty(comp);
+            }
+        }
+    }
+
 	public void drawBox(Graphics g, Bounds bds, Color color) {
 		g.setColor(Color.WHITE);
 		g.fillRect(bds.getX() + ARROW_WIDTH, bds.getY() + 5,
@@ -1126,7 +2549,7 @@ class Program32 extends ManagedComponent {
 			if (i < 0 || i > 0x3fffffff) continue;
 			if (i == state.pc) g.setColor(Color.BLUE);
 			else if (!state.haveCodeFor(i)) g.setColor(Color.GRAY);
-			GraphicsUtil.drawText(g, font, StringUtil.toHexString(32, i*4),
+			GraphicsUtil.drawText(g, font, state.code.addressText(i),
 					bds.getX() + ARROW_WIDTH + 2,
 					bds.getY() + 20*j + 20/2 + 10,
 					GraphicsUtil.H_LEFT, GraphicsUtil.V_CENTER);
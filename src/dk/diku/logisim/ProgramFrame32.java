@@ -33,7 +33,6 @@ import com.cburch.hex.HexEditor;
 import com.cburch.hex.HexModel;
 import com.cburch.logisim.gui.menu.LogisimMenuBar;
 import com.cburch.logisim.util.WindowMenuItemManager;
-import com.cburch.logisim.util.StringUtil;
 import com.cburch.logisim.proj.Action;
 import com.cburch.logisim.proj.Project;
 
@@ -132,14 +131,13 @@ public class ProgramFrame32 extends JFrame {
 		public Object getValueAt(int row, int col) {
 			try {
 				if (col == 0) {
-					Integer i = (Integer)code.addr_map.get(row);
-					if (i == null) return "";
-					else return StringUtil.toHexString(32, i.intValue());
+					int i = code.addr_map[row];
+					if (i == Program32.NO_ADDRESS) return "";
+					else return code.addressText(i/4);
 				} else if (col == 1) {
-					Integer i = (Integer)code.addr_map.get(row);
-					if (i == null) return "";
-					int instr = code.instr(i.intValue()/4);
-					return StringUtil.toHexString(32, instr);
+					int i = code.addr_map[row];
+					if (i == Program32.NO_ADDRESS) return "";
+					return code.binaryText(i/4);
 				}
 				else return code.src_lines.get(row);
 			} catch (Exception e) {
@@ -205,5 +203,14 @@ public class ProgramFrame32 extends JFrame {
     public void setVisible(boolean value) {
         if(value && !isVisible()) windowManager.frameOpened(this);
         super.setVisible(value);
+        Program32.State state = code.getState();
+        if(value && state != null && state.isValidPC()) showLine(code.lineOf(state.pc));
     }
+
+	// select and scroll to the given source line
+	void showLine(int row) {
+		if (row < 0 || row >= model.getRowCount()) return;
+		listing.setRowSelectionInterval(row, row);
+		listing.scrollRectToVisible(listing.getCellRect(row, 0, true));
+	}
 }
@@ -9,6 +9,10 @@ import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.JOptionPane;
 
 import com.cburch.logisim.circuit.CircuitState;
 import com.cburch.logisim.data.Attribute;
@@ -50,11 +54,21 @@ public class Ram extends Mem {
             new Object[] { BUS_COMBINED, BUS_ASYNCH, BUS_SEPARATE });
 	*/
 
+    // Path of a file to map the memory onto, so that images larger than the
+    // heap can be used; empty for an ordinary memory.
+    static final Attribute IMAGE_ATTR = Attributes.forString("imageFile",
+            new SimpleStringGetter("Backing Image File"));
+
+    // Whether the data section of the MIPS program in the same circuit is
+    // stored into the memory when the simulation is reset.
+    static final Attribute PROGRAM_DATA_ATTR = Attributes.forBoolean("programData",
+            new SimpleStringGetter("Load Program Data"));
+
     private static Attribute[] ATTRIBUTES = {
-        Mem.ADDR_ATTR /*, Mem.DATA_ATTR, ATTR_BUS */
+        Mem.ADDR_ATTR, IMAGE_ATTR, PROGRAM_DATA_ATTR /*, Mem.DATA_ATTR, ATTR_BUS */
     };
     private static Object[] DEFAULTS = {
-        BitWidth.create(20) /*, BitWidth.create(8), BUS_COMBINED */
+        BitWidth.create(20), "", Boolean.TRUE /*, BitWidth.create(8), BUS_COMBINED */
     };
     
     private static final int OE  = MEM_INPUTS + 0;
@@ -78,6 +92,26 @@ public class Ram extends Mem {
     protected void instanceAttributeChanged(Instance instance, Attribute attr) {
         super.instanceAttributeChanged(instance, attr);
         configurePorts(instance);
+        if(attr == IMAGE_ATTR) {
+            // the states map the file as they need it, on the simulator's
+            // thread, so a file they cannot use is reported here
+            String path = (String) instance.getAttributeValue(IMAGE_ATTR);
+            if(path != null && path.length() > 0) {
+                try {
+                    MemContents.checkImageFile(new File(path));
+                } catch(IOException e) {
+                    JOptionPane.showMessageDialog(null, "Cannot map RAM image "
+                            + path + ": " + e.getMessage(), "RAM Image Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }
+    }
+
+    // The reason the image file of instance could not be mapped in state,
+    // or null if it was.
+    String getImageError(Instance instance, CircuitState state) {
+        return ((RamState) getState(instance, state)).imageError;
     }
     
     void configurePorts(Instance instance) {
@@ -125,6 +159,7 @@ public class Ram extends Mem {
             MemContents contents = MemContents.create(addrBits.getWidth(), 32 /*dataBits.getWidth()*/);
             Instance instance = state.getInstance();
             myState = new RamState(instance, contents, new MemListener(instance));
+            myState.setImage((String) state.getAttributeValue(IMAGE_ATTR));
             state.setData(myState);
         } else {
             myState.setRam(state.getInstance());
@@ -140,6 +175,7 @@ public class Ram extends Mem {
         if(myState == null) {
             MemContents contents = MemContents.create(addrBits.getWidth(), 32 /*dataBits.getWidth()*/);
             myState = new RamState(instance, contents, new MemListener(instance));
+            myState.setImage((String) instance.getAttributeValue(IMAGE_ATTR));
             instance.setData(state, myState);
         } else {
             myState.setRam(instance);
@@ -147,6 +183,33 @@ public class Ram extends Mem {
         return myState;
     }
 
+    // Stores the data section of a program, which is indexed by word
+    // address, into the memory of instance, unless its Load Program Data
+    // attribute is off. Words beyond the end of the memory are dropped.
+    // Returns whether the memory was written.
+    boolean loadProgramData(Instance instance, CircuitState circState, Program32.Segment[] data) {
+        if(data.length == 0 || Boolean.FALSE.equals(instance.getAttributeValue(PROGRAM_DATA_ATTR))) return false;
+        MemContents contents = getState(instance, circState).getContents();
+        long size = 1L << contents.getLogLength();
+        contents.beginBatch();
+        try {
+            for(int s = 0; s < data.length; s++) {
+                long start = data[s].start_pc & 0xffffffffL;
+                if(start >= size) continue;
+                int[] words = data[s].data;
+                if(start + words.length > size) {
+                    int[] part = new int[(int) (size - start)];
+                    System.arraycopy(words, 0, part, 0, part.length);
+                    words = part;
+                }
+                contents.set(start, words);
+            }
+        } finally {
+            contents.endBatch();
+        }
+        return true;
+    }
+
     HexFrame getHexFrame(Project proj, Instance instance, CircuitState circState) {
         RamState state = (RamState) getState(instance, circState);
         return state.getHexFrame(proj);
@@ -173,6 +236,22 @@ public class Ram extends Mem {
 
     public void propagate(InstanceState state) {
         RamState myState = (RamState) getState(state);
+        if(state.getPort(CLR) != Value.TRUE) {
+            // a lone store is reported as the one word it is
+            propagate(state, myState);
+            return;
+        }
+        // a clear and a store in the same step are reported to listeners once
+        MemContents contents = myState.getContents();
+        contents.beginBatch();
+        try {
+            propagate(state, myState);
+        } finally {
+            contents.endBatch();
+        }
+    }
+
+    private void propagate(InstanceState state, RamState myState) {
         BitWidth dataBits = BitWidth.create(32); // (BitWidth) state.getAttributeValue(DATA_ATTR);
         //Object busVal = state.getAttributeValue(ATTR_BUS);
         boolean asynch = false; //busVal == null ? false : busVal.equals(BUS_ASYNCH);
@@ -277,6 +356,7 @@ public class Ram extends Mem {
         private MemListener listener;
         private HexFrame hexFrame = null;
         private ClockState clockState;
+        private String imageError = null;
 
         RamState(Instance parent, MemContents contents, MemListener listener) {
             super(contents);
@@ -284,6 +364,7 @@ public class Ram extends Mem {
             this.listener = listener;
             this.clockState = new ClockState();
             if(parent != null) parent.getAttributeSet().addAttributeListener(this);
+            listener.state = this;
             contents.addHexModelListener(listener);
         }
         
@@ -298,7 +379,9 @@ public class Ram extends Mem {
             RamState ret = (RamState) super.clone();
             ret.parent = null;
             ret.clockState = (ClockState) this.clockState.clone();
-            ret.getContents().addHexModelListener(listener);
+            ret.listener = new MemListener(listener.instance);
+            ret.listener.state = ret;
+            ret.getContents().addHexModelListener(ret.listener);
             return ret;
         }
         
@@ -329,6 +412,19 @@ public class Ram extends Mem {
             BitWidth addrBits = (BitWidth) attrs.getValue(Mem.ADDR_ATTR);
             //BitWidth dataBits = (BitWidth) attrs.getValue(Mem.DATA_ATTR);
             getContents().setDimensions(addrBits.getWidth(), 32 /*dataBits.getWidth()*/);
+            setImage((String) attrs.getValue(IMAGE_ATTR));
+        }
+
+        // May run on the simulator's thread, so a failure is only noted,
+        // for the menu and the attribute change to report.
+        void setImage(String path) {
+            File file = path == null || path.length() == 0 ? null : new File(path);
+            try {
+                getContents().setImageFile(file);
+                imageError = null;
+            } catch(IOException e) {
+                imageError = "Cannot map RAM image " + path + ": " + e.getMessage();
+            }
         }
     }
     
@@ -5,6 +5,7 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
+import java.util.Arrays;
 
 import com.cburch.logisim.comp.ComponentDrawContext;
 import com.cburch.logisim.circuit.CircuitState;
@@ -99,19 +100,17 @@ class RegisterFile32 extends ManagedComponent {
 			if (idx < 1) return;
             int nue = Character.digit(e.getKeyChar(), 16);
             if (nue < 0) return;
-			int old = (state.R[idx].isFullyDefined() ? state.R[idx].toIntValue() : 0);
+			int old = (state.isDefined(idx) ? state.val[idx] : 0);
 
 			// getMask had a bug, and isn't needed
-            Value val = Value.createKnown(WIDTH, ((old<<4) | nue) /* & WIDTH.getMask() */);
-            
-            state.R[idx] = val;
+            state.set(idx, (old<<4) | nue /* & WIDTH.getMask() */);
 			// check if need to propagate to P_RDATA1 or P_RDATA2
 			int a1 = RegisterFile32.this.addr(circuitState, P_RADDR1);
 			if (a1 == idx) 
-				circuitState.setValue(RegisterFile32.this.loc(P_RDATA1), val, RegisterFile32.this, 1);
+				state.outputs.drive(circuitState, RegisterFile32.this, RegisterFile32.this.loc(P_RDATA1), 0, state.get(idx), 1);
 			int a2 = RegisterFile32.this.addr(circuitState, P_RADDR2);
 			if (a2 == idx) 
-				circuitState.setValue(RegisterFile32.this.loc(P_RDATA2), val, RegisterFile32.this, 1);
+				state.outputs.drive(circuitState, RegisterFile32.this, RegisterFile32.this.loc(P_RDATA2), 1, state.get(idx), 1);
         }
 
         public void stopEditing() { }
@@ -209,17 +208,80 @@ class RegisterFile32 extends ManagedComponent {
 	static final Value xxxx = Value.createError(WIDTH);
 	static final Value zzzz = Value.createUnknown(WIDTH);
 
+	// Registers are kept as numbers. A register whose bits are not all
+	// defined is instead kept as the Value it was given, which the read
+	// ports pass on unchanged.
 	private class State implements ComponentState, Cloneable {
 		public Value lastClock = null;
-		public Value R[] = new Value[NUM_REGISTERS];
+		public int val[] = new int[NUM_REGISTERS];
+		public int defined; // bit i is set if val[i] holds register i
+		// Register i as a Value: the one written to it, or made when it is
+		// first read after a reset or a poke. Always set for those not
+		// defined.
+		private Value R[] = new Value[NUM_REGISTERS];
+		// hex text of each register, and the number it shows
+		private String text[] = new String[NUM_REGISTERS];
+		private int text_val[] = new int[NUM_REGISTERS];
+		DrivenOutputs outputs = new DrivenOutputs(2); // P_RDATA1, P_RDATA2
+
+		public State() { reset(zero); }
+		public void reset(Value v) {
+			if (v.isFullyDefined()) {
+			    Arrays.fill(val, v.toIntValue());
+			    defined = -1;
+			} else {
+			    defined = 1;
+			}
+			Arrays.fill(R, v);
+			val[0] = 0;
+			R[0] = zero;
+		}
+
+		boolean isDefined(int i) { return (defined >>> i & 1) != 0; }
+
+		void set(int i, int v) {
+			val[i] = v;
+			defined |= 1 << i;
+			R[i] = null;
+		}
+
+		void set(int i, Value v) {
+			if (v.isFullyDefined()) {
+			    val[i] = v.toIntValue();
+			    defined |= 1 << i;
+			} else {
+			    defined &= ~(1 << i);
+			}
+			R[i] = v;
+		}
+
+		Value get(int i) {
+			Value v = R[i];
+			if (v == null) R[i] = v = Value.createKnown(WIDTH, val[i]);
+			return v;
+		}
 
-		public State() { R[0] = zero; reset(zero); }
-		public void reset(Value val) {
-			for (int i = 1; i < NUM_REGISTERS; i++)
-				R[i] = val;
+		String text(int i) {
+			if (!isDefined(i)) return "?";
+			String s = text[i];
+			if (s == null || text_val[i] != val[i]) {
+			    text[i] = s = StringUtil.toHexString(WIDTH.getWidth(), val[i]);
+			    text_val[i] = val[i];
+			}
+			return s;
 		}
 
-		public Object clone() { try { return super.clone(); } catch(CloneNotSupportedException e) { return null; } }
+		public Object clone() {
+			try {
+			    State ret = (State) super.clone();
+			    ret.val = (int[]) val.clone();
+			    ret.R = (Value[]) R.clone();
+			    ret.text = new String[NUM_REGISTERS];
+			    ret.text_val = new int[NUM_REGISTERS];
+			    ret.outputs = new DrivenOutputs(2);
+			    return ret;
+			} catch(CloneNotSupportedException e) { return null; }
+		}
 
 		public boolean updateClock(Value newClock, Object trigger) {
 		    Value oldClock = lastClock;
@@ -251,7 +313,7 @@ class RegisterFile32 extends ManagedComponent {
 			Value v = val(circuitState, P_WDATA);
 			if (a < 0) state.reset(zzzz); // clobber all
 			else if (a == 0) { /* skip */ }
-			else if (a < NUM_REGISTERS) state.R[a] = v;
+			else if (a < NUM_REGISTERS) state.set(a, v);
 			else
 				throw new IllegalArgumentException("Write address invalid: Please email kwalsh@cs and tell him!");
 		}
@@ -263,10 +325,10 @@ class RegisterFile32 extends ManagedComponent {
 		int a2 = addr(circuitState, P_RADDR2);
 		if (a1 >= NUM_REGISTERS || a2 >= NUM_REGISTERS)
 			throw new IllegalArgumentException("Read address invalid: Please email kwalsh@cs and tell him!");
-		Value v1 = (a1 < 0 ? zzzz : (a1 < NUM_REGISTERS ? state.R[a1] : xxxx));
-		Value v2 = (a2 < 0 ? zzzz : (a2 < NUM_REGISTERS ? state.R[a2] : xxxx));
-		circuitState.setValue(loc(P_RDATA1), v1, this, 9);
-		circuitState.setValue(loc(P_RDATA2), v2, this, 9);
+		Value v1 = (a1 < 0 ? zzzz : (a1 < NUM_REGISTERS ? state.get(a1) : xxxx));
+		Value v2 = (a2 < 0 ? zzzz : (a2 < NUM_REGISTERS ? state.get(a2) : xxxx));
+		state.outputs.drive(circuitState, this, loc(P_RDATA1), 0, v1, 9);
+		state.outputs.drive(circuitState, this, loc(P_RDATA2), 1, v2, 9);
 	}
 
     private State getState(CircuitState circuitState) {
@@ -357,8 +419,7 @@ class RegisterFile32 extends ManagedComponent {
 		g.setColor(Color.BLACK);
 		State state = getState(context.getCircuitState());
 		for (int i = 0; i < NUM_REGISTERS; i++) {
-			int v = state.R[i].toIntValue();
-			String s = (state.R[i].isFullyDefined() ? StringUtil.toHexString(WIDTH.getWidth(), v) : "?");
+			String s = state.text(i);
 			GraphicsUtil.drawText(g, font, s, 
 					bds.getX() + boxX(i) + BOX_WIDTH/2,
 					bds.getY() + boxY(i) + (BOX_HEIGHT-1)/2,
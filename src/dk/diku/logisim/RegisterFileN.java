@@ -0,0 +1,271 @@
+package dk.diku.logisim;
+
+import java.awt.Graphics;
+
+import com.cburch.logisim.data.Attribute;
+import com.cburch.logisim.data.AttributeSet;
+import com.cburch.logisim.data.Attributes;
+import com.cburch.logisim.data.BitWidth;
+import com.cburch.logisim.data.Bounds;
+import com.cburch.logisim.data.Direction;
+import com.cburch.logisim.data.Value;
+import com.cburch.logisim.instance.Instance;
+import com.cburch.logisim.instance.InstanceData;
+import com.cburch.logisim.instance.InstanceFactory;
+import com.cburch.logisim.instance.InstancePainter;
+import com.cburch.logisim.instance.InstanceState;
+import com.cburch.logisim.instance.Port;
+import com.cburch.logisim.instance.StdAttr;
+import com.cburch.logisim.util.GraphicsUtil;
+
+/** A register file with a configurable number of registers, width, read
+ * ports and write ports, for designs that would otherwise wire several
+ * RegisterFile32s together.
+ *
+ * Each write port has data, address and enable inputs; each read port an
+ * address input and a data output, on the same row. On a clock edge,
+ * every enabled write port stores its data, the ports in order, so that
+ * of two ports writing one register the higher-numbered one wins. A port
+ * enabled with an undefined address makes every register unknown, as in
+ * RegisterFile32. Clear sets every register to zero.
+ */
+class RegisterFileN extends InstanceFactory {
+    static final int MAX_READ_PORTS = 8;
+    static final int MAX_WRITE_PORTS = 4;
+
+    static final Attribute REGISTERS_ATTR = Attributes.forIntegerRange("registers",
+            new SimpleStringGetter("Registers"), 2, 256);
+    static final Attribute READ_PORTS_ATTR = Attributes.forIntegerRange("readPorts",
+            new SimpleStringGetter("Read Ports"), 1, MAX_READ_PORTS);
+    static final Attribute WRITE_PORTS_ATTR = Attributes.forIntegerRange("writePorts",
+            new SimpleStringGetter("Write Ports"), 1, MAX_WRITE_PORTS);
+    static final Attribute ZERO_ATTR = Attributes.forBoolean("zeroRegister",
+            new SimpleStringGetter("Register 0 Always Zero"));
+
+    private static final int WIDTH = 80;
+    private static final int DELAY = 9;
+
+    RegisterFileN() {
+        super("RegisterFileN", new SimpleStringGetter("Multi-Port Registers"));
+        setAttributes(new Attribute[] {
+                StdAttr.WIDTH, REGISTERS_ATTR, READ_PORTS_ATTR, WRITE_PORTS_ATTR,
+                ZERO_ATTR, StdAttr.TRIGGER
+            }, new Object[] {
+                BitWidth.create(32), Integer.valueOf(32), Integer.valueOf(2), Integer.valueOf(1),
+                Boolean.TRUE, StdAttr.TRIG_RISING
+            });
+    }
+
+    private static int intValue(AttributeSet attrs, Attribute attr) {
+        return ((Integer) attrs.getValue(attr)).intValue();
+    }
+
+    // the address bits needed to name every register
+    static int addressBits(int registers) {
+        return 32 - Integer.numberOfLeadingZeros(registers - 1);
+    }
+
+    // port numbers: writes first, then reads, then clock and clear
+    static int writeData(int w) { return 3 * w; }
+    static int writeAddr(int w) { return 3 * w + 1; }
+    static int writeEnable(int w) { return 3 * w + 2; }
+    static int readAddr(int writes, int r) { return 3 * writes + 2 * r; }
+    static int readData(int writes, int r) { return 3 * writes + 2 * r + 1; }
+    static int clock(int writes, int reads) { return 3 * writes + 2 * reads; }
+    static int clear(int writes, int reads) { return 3 * writes + 2 * reads + 1; }
+
+    // write ports take three rows each, read ports one; the first read
+    // row is at readTop
+    private static int readTop(int writes) { return 20 + 30 * writes; }
+
+    public Bounds getOffsetBounds(AttributeSet attrs) {
+        int writes = intValue(attrs, WRITE_PORTS_ATTR);
+        int reads = intValue(attrs, READ_PORTS_ATTR);
+        return Bounds.create(-WIDTH, 0, WIDTH, readTop(writes) + 20 * reads + 10);
+    }
+
+    protected void configureNewInstance(Instance instance) {
+        instance.addAttributeListener();
+        configurePorts(instance);
+    }
+
+    protected void instanceAttributeChanged(Instance instance, Attribute attr) {
+        if(attr != StdAttr.TRIGGER && attr != ZERO_ATTR) {
+            instance.recomputeBounds();
+            configurePorts(instance);
+        }
+    }
+
+    private void configurePorts(Instance instance) {
+        AttributeSet attrs = instance.getAttributeSet();
+        int writes = intValue(attrs, WRITE_PORTS_ATTR);
+        int reads = intValue(attrs, READ_PORTS_ATTR);
+        int addrBits = addressBits(intValue(attrs, REGISTERS_ATTR));
+        int height = readTop(writes) + 20 * reads + 10;
+        Port[] ps = new Port[3 * writes + 2 * reads + 2];
+        for(int w = 0; w < writes; w++) {
+            int y = 10 + 30 * w;
+            ps[writeData(w)] = new Port(-WIDTH, y, Port.INPUT, StdAttr.WIDTH);
+            ps[writeData(w)].setToolTip(new SimpleStringGetter("Write data " + w));
+            ps[writeAddr(w)] = new Port(-WIDTH, y + 10, Port.INPUT, addrBits);
+            ps[writeAddr(w)].setToolTip(new SimpleStringGetter("Write address " + w));
+            ps[writeEnable(w)] = new Port(-WIDTH, y + 20, Port.INPUT, 1);
+            ps[writeEnable(w)].setToolTip(new SimpleStringGetter("Write enable " + w + ": if 1 store data on the clock edge"));
+        }
+        for(int r = 0; r < reads; r++) {
+            int y = readTop(writes) + 20 * r;
+            ps[readAddr(writes, r)] = new Port(-WIDTH, y, Port.INPUT, addrBits);
+            ps[readAddr(writes, r)].setToolTip(new SimpleStringGetter("Read address " + r));
+            ps[readData(writes, r)] = new Port(0, y, Port.OUTPUT, StdAttr.WIDTH);
+            ps[readData(writes, r)].setToolTip(new SimpleStringGetter("Read data " + r));
+        }
+        ps[clock(writes, reads)] = new Port(-WIDTH + 20, height, Port.INPUT, 1);
+        ps[clock(writes, reads)].setToolTip(new SimpleStringGetter("Clock: registers update on the edge"));
+        ps[clear(writes, reads)] = new Port(-20, height, Port.INPUT, 1);
+        ps[clear(writes, reads)].setToolTip(new SimpleStringGetter("Clear: 1 resets every register to zero"));
+        instance.setPorts(ps);
+    }
+
+    // Registers are kept as numbers, as in RegisterFile32: a register that
+    // is not fully defined is kept as the Value written to it instead.
+    private static class State implements InstanceData, Cloneable {
+        int width;
+        int[] val;
+        long[] defined; // bit i is set if val[i] holds register i
+        Value[] R; // register i as a Value, made when first read
+        ClockState clock = new ClockState();
+        DrivenOutputs outputs = new DrivenOutputs(MAX_READ_PORTS);
+        int writes, reads; // the port layout outputs were driven at
+
+        State(int registers, int width) {
+            this.width = width;
+            val = new int[registers];
+            defined = new long[(registers + 63) / 64];
+            R = new Value[registers];
+            reset(Value.createKnown(BitWidth.create(width), 0));
+        }
+
+        void reset(Value v) {
+            boolean known = v.isFullyDefined();
+            int x = known ? v.toIntValue() : 0;
+            for(int i = 0; i < val.length; i++) {
+                val[i] = x;
+                R[i] = v;
+            }
+            for(int i = 0; i < defined.length; i++) defined[i] = known ? -1L : 0L;
+        }
+
+        boolean isDefined(int i) {
+            return (defined[i >>> 6] & (1L << i)) != 0;
+        }
+
+        void set(int i, Value v) {
+            if(v.isFullyDefined()) {
+                val[i] = v.toIntValue();
+                defined[i >>> 6] |= 1L << i;
+            } else {
+                defined[i >>> 6] &= ~(1L << i);
+            }
+            R[i] = v;
+        }
+
+        Value get(int i) {
+            Value v = R[i];
+            if(v == null) R[i] = v = Value.createKnown(BitWidth.create(width), val[i]);
+            return v;
+        }
+
+        public Object clone() {
+            try {
+                State ret = (State) super.clone();
+                ret.val = (int[]) val.clone();
+                ret.defined = (long[]) defined.clone();
+                ret.R = (Value[]) R.clone();
+                ret.clock = (ClockState) clock.clone();
+                ret.outputs = new DrivenOutputs(MAX_READ_PORTS);
+                return ret;
+            } catch(CloneNotSupportedException e) { return null; }
+        }
+    }
+
+    private State getState(InstanceState state) {
+        int registers = intValue(state.getAttributeSet(), REGISTERS_ATTR);
+        int width = ((BitWidth) state.getAttributeValue(StdAttr.WIDTH)).getWidth();
+        State s = (State) state.getData();
+        if(s == null || s.val.length != registers || s.width != width) {
+            s = new State(registers, width);
+            state.setData(s);
+        }
+        // other port counts move the read data ports, which then carry
+        // nothing until driven again
+        int writes = intValue(state.getAttributeSet(), WRITE_PORTS_ATTR);
+        int reads = intValue(state.getAttributeSet(), READ_PORTS_ATTR);
+        if(s.writes != writes || s.reads != reads) {
+            s.writes = writes;
+            s.reads = reads;
+            s.outputs = new DrivenOutputs(MAX_READ_PORTS);
+        }
+        return s;
+    }
+
+    public void propagate(InstanceState state) {
+        State s = getState(state);
+        AttributeSet attrs = state.getAttributeSet();
+        int writes = intValue(attrs, WRITE_PORTS_ATTR);
+        int reads = intValue(attrs, READ_PORTS_ATTR);
+        boolean zeroReg = Boolean.TRUE.equals(attrs.getValue(ZERO_ATTR));
+        BitWidth width = (BitWidth) state.getAttributeValue(StdAttr.WIDTH);
+        int registers = s.val.length;
+
+        boolean triggered = s.clock.updateClock(state.getPort(clock(writes, reads)),
+                state.getAttributeValue(StdAttr.TRIGGER));
+        if(state.getPort(clear(writes, reads)) == Value.TRUE) {
+            s.reset(Value.createKnown(width, 0));
+        } else if(triggered) {
+            for(int w = 0; w < writes; w++) {
+                if(state.getPort(writeEnable(w)) != Value.TRUE) continue;
+                Value a = state.getPort(writeAddr(w));
+                if(!a.isFullyDefined()) {
+                    s.reset(Value.createUnknown(width)); // clobber all
+                    continue;
+                }
+                int i = a.toIntValue();
+                if(i < registers && !(zeroReg && i == 0)) s.set(i, state.getPort(writeData(w)));
+            }
+        }
+        if(zeroReg && (!s.isDefined(0) || s.val[0] != 0)) s.set(0, Value.createKnown(width, 0));
+
+        for(int r = 0; r < reads; r++) {
+            Value a = state.getPort(readAddr(writes, r));
+            Value v;
+            if(!a.isFullyDefined()) v = Value.createUnknown(width);
+            else if(a.toIntValue() >= registers) v = Value.createError(width);
+            else v = s.get(a.toIntValue());
+            s.outputs.drive(state, readData(writes, r), r, v, DELAY);
+        }
+    }
+
+    public void paintInstance(InstancePainter painter) {
+        AttributeSet attrs = painter.getAttributeSet();
+        int writes = intValue(attrs, WRITE_PORTS_ATTR);
+        int reads = intValue(attrs, READ_PORTS_ATTR);
+        painter.drawBounds();
+        for(int w = 0; w < writes; w++) {
+            painter.drawPort(writeData(w), "W" + w, Direction.EAST);
+            painter.drawPort(writeAddr(w), "rW" + w, Direction.EAST);
+            painter.drawPort(writeEnable(w), "WE" + w, Direction.EAST);
+        }
+        for(int r = 0; r < reads; r++) {
+            painter.drawPort(readAddr(writes, r), "r" + (char) ('A' + r), Direction.EAST);
+            painter.drawPort(readData(writes, r), String.valueOf((char) ('A' + r)), Direction.WEST);
+        }
+        painter.drawClock(clock(writes, reads), Direction.NORTH);
+        painter.drawPort(clear(writes, reads), "clr", Direction.SOUTH);
+
+        Graphics g = painter.getGraphics();
+        Bounds bds = painter.getBounds();
+        GraphicsUtil.drawCenteredText(g, intValue(attrs, REGISTERS_ATTR) + " x "
+                + ((BitWidth) attrs.getValue(StdAttr.WIDTH)).getWidth(),
+                bds.getX() + bds.getWidth() / 2, bds.getY() + bds.getHeight() - 20);
+    }
+}
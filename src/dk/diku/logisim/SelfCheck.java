@@ -0,0 +1,591 @@
+package dk.diku.logisim;
+
+import com.cburch.logisim.data.BitWidth;
+import com.cburch.logisim.data.Value;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Checks, on generated inputs, that the fast paths of the assembler and
+ * the simulator agree with the simple ones they stand in for. Run with
+ * Logisim on the class path:
+ *
+ *   java dk.diku.logisim.SelfCheck [-n rounds] [-seed n] [check...]
+ *
+ * with the checks, all of them by default:
+ *
+ *   encoder  assembles generated programs, errors and all, with the
+ *            fork/join Encoder splitting them into small chunks and
+ *            not at all, and from scratch and incrementally; the
+ *            segments, source lines, address maps and error messages
+ *            must be the same
+ *
+ *   masked   evaluates the ALU operations of MaskedWord on words with
+ *            unknown and error bits: sums must match Adder.computeSum at
+ *            every width, every defined bit of a result must hold for
+ *            any values of the undefined input bits, and fully defined
+ *            inputs must give the plain result
+ *
+ *   memory   sets and fills 8, 16 and 32-bit MemContents across page
+ *            boundaries, with zeroes as often as not, on the heap and
+ *            in an image file, and writes to clones of them alongside;
+ *            every word, the pages in use and isClear() must match an
+ *            array given the same writes, and the image file must read
+ *            back as the array of the memory writing it
+ *
+ * Each check prints what it compared. The exit status is 1 if any check
+ * found a difference, which is printed with the seed to repeat it.
+ */
+class SelfCheck {
+    private int rounds = 20;
+    private long seed = 1;
+
+    private SelfCheck() { }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        SelfCheck check = new SelfCheck();
+        String[] names = new String[args.length];
+        int count = 0;
+        try {
+            for(int i = 0; i < args.length; i++) {
+                if(args[i].equals("-n") && i + 1 < args.length) {
+                    check.rounds = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-seed") && i + 1 < args.length) {
+                    check.seed = Long.parseLong(args[++i]);
+                } else if(args[i].startsWith("-")) {
+                    return usage("unknown option '" + args[i] + "'");
+                } else {
+                    names[count++] = args[i];
+                }
+            }
+        } catch(NumberFormatException e) {
+            return usage("-n and -seed need a number");
+        }
+        if(count == 0) {
+            names = new String[] { "encoder", "masked", "memory" };
+            count = names.length;
+        }
+        int status = 0;
+        for(int i = 0; i < count; i++) {
+            String failure;
+            if(names[i].equals("encoder")) failure = check.encoder();
+            else if(names[i].equals("masked")) failure = check.masked();
+            else if(names[i].equals("memory")) failure = check.memory();
+            else return usage("unknown check '" + names[i] + "'");
+            if(failure != null) {
+                System.err.println(names[i] + " (seed " + check.seed + "): " + failure);
+                status = 1;
+            }
+        }
+        return status;
+    }
+
+    private static int usage(String problem) {
+        if(problem != null) System.err.println(problem);
+        System.err.println("usage: SelfCheck [-n rounds] [-seed n] [encoder|masked|memory]...");
+        return 1;
+    }
+
+    //
+    // encoder
+    //
+
+    // chunk sizes to split the encoding at; the first is no split at all
+    private static final int[] CHUNKS = { Integer.MAX_VALUE, 1, 7, 64, 4096 };
+
+    private String encoder() {
+        Random r = new Random(seed);
+        int saved = Program32.Encoder.CHUNK;
+        int programs = 0, failed = 0;
+        try {
+            for(int round = 0; round < rounds; round++) {
+                int lines = round % 4 == 3 ? 20000 : 50 + r.nextInt(2000);
+                int errors = round % 3;
+                String src = program(r, lines, errors);
+                String edited = edit(r, src, errors);
+
+                Program32.Encoder.CHUNK = CHUNKS[0];
+                String want = assemble(src);
+                String wantEdited = assemble(edited);
+                if(errors == NONE && want.startsWith("error")) {
+                    return "round " + round + ": generated program does not assemble: " + want;
+                }
+                for(int c = 1; c < CHUNKS.length; c++) {
+                    Program32.Encoder.CHUNK = CHUNKS[c];
+                    String got = assemble(src);
+                    if(!got.equals(want)) {
+                        return "round " + round + ", chunk " + CHUNKS[c] + ": "
+                            + firstDifference(want, got);
+                    }
+                    // the edit reuses the words of the first assembly
+                    String gotEdited = assembleAfter(src, edited);
+                    if(!gotEdited.equals(wantEdited)) {
+                        return "round " + round + ", chunk " + CHUNKS[c]
+                            + ", incremental: " + firstDifference(wantEdited, gotEdited);
+                    }
+                }
+                programs += 2;
+                if(want.startsWith("error")) failed++;
+                if(wantEdited.startsWith("error")) failed++;
+            }
+        } finally {
+            Program32.Encoder.CHUNK = saved;
+        }
+        System.out.println("encoder: " + programs + " programs (" + failed
+            + " with errors) the same at chunk sizes " + Arrays.toString(CHUNKS)
+            + ", from scratch and incrementally");
+        return null;
+    }
+
+    // The assembly of src as text: every segment and the address map, or
+    // the error message.
+    private static String assemble(String src) {
+        try {
+            return describe(new Program32.Listing(src));
+        } catch(IOException e) {
+            return "error " + e.getMessage();
+        }
+    }
+
+    private static String assembleAfter(String first, String src) {
+        Program32.Listing code = new Program32.Listing();
+        try {
+            code.setSource(first);
+        } catch(IOException e) {
+            // what matters is the second assembly
+        }
+        try {
+            code.setSource(src);
+            return describe(code);
+        } catch(IOException e) {
+            return "error " + e.getMessage();
+        }
+    }
+
+    private static String describe(Program32.Listing code) {
+        StringBuilder out = new StringBuilder();
+        describe(code.seg, out.append("text"));
+        describe(code.data_seg, out.append("\ndata"));
+        out.append("\naddr_map");
+        for(int i = 0; i < code.addr_map.length; i++) out.append(' ').append(code.addr_map[i]);
+        return out.toString();
+    }
+
+    private static void describe(Program32.Segment[] seg, StringBuilder out) {
+        for(int s = 0; s < seg.length; s++) {
+            out.append("\nsegment ").append(Integer.toHexString(seg[s].start_pc));
+            for(int i = 0; i < seg[s].data.length; i++) {
+                out.append(' ').append(Integer.toHexString(seg[s].data[i]))
+                    .append('@').append(seg[s].line[i]);
+            }
+        }
+    }
+
+    private static String firstDifference(String want, String got) {
+        int i = 0;
+        while(i < want.length() && i < got.length() && want.charAt(i) == got.charAt(i)) i++;
+        int from = Math.max(0, i - 40);
+        return "expected ..." + want.substring(from, Math.min(want.length(), i + 40))
+            + "... but got ..." + got.substring(from, Math.min(got.length(), i + 40)) + "...";
+    }
+
+    // what is wrong with a generated program: nothing, statements that
+    // fail to encode, which the chunks of the Encoder each find some of,
+    // or statements that fail to be laid out, some by being longer than
+    // MAX_BLOCK words, which stop the assembly before it encodes
+    private static final int NONE = 0, ENCODING = 1, LAYOUT = 2;
+
+    private static final String[] REGS = {
+        "$t0", "$t1", "$s0", "$a0", "$v0", "$1", "$2", "$sp", "$ra", "$zero"
+    };
+
+    // A program of about n lines using most of what the assembler knows:
+    // labels, branches and jumps, pseudo-instructions, macros, .rept
+    // blocks of more words than a chunk, several text segments and a data
+    // section, with some lines broken as errors asks.
+    private static String program(Random r, int n, int errors) {
+        StringBuilder out = new StringBuilder();
+        out.append("# generated\n");
+        out.append(".macro inc reg, amount\n  addi \\reg, \\reg, \\amount\n.endm\n");
+        out.append(".macro swap a, b\n  xor \\a, \\a, \\b\n  xor \\b, \\a, \\b\n  xor \\a, \\a, \\b\n.endm\n");
+        out.append(".data\nnumbers: .word 1, 2, 3\ntext: .asciiz \"hello # not a comment\"\n");
+        out.append(".text 0x00400000\n");
+        int labels = (n - 1) / 7 + 1;
+        int segment = 0;
+        int first = 0; // the first label since a segment or long block began
+        String anchor = null; // the label at that beginning
+        for(int i = 0; i < n; i++) {
+            if(i % 7 == 0) out.append("L").append(i / 7).append(":\n");
+            // branches reach back to a near label with no long block in
+            // between; jumps go anywhere
+            String near = i / 7 < first ? anchor
+                : "L" + (i / 7 - r.nextInt(Math.min(i / 7 - first, 200) + 1));
+            String a = REGS[r.nextInt(REGS.length)];
+            String b = REGS[r.nextInt(REGS.length)];
+            String c = REGS[r.nextInt(REGS.length)];
+            int k = r.nextInt(errors == NONE ? 19 : 20);
+            switch(k) {
+            case 0: out.append("  addi ").append(a).append(", ").append(b).append(", ").append(r.nextInt(2000) - 1000); break;
+            case 1: out.append("  add ").append(a).append(", ").append(b).append(", ").append(c).append("  # sum"); break;
+            case 2: out.append("  lw ").append(a).append(", ").append(4 * r.nextInt(100)).append('(').append(b).append(')'); break;
+            case 3: out.append("  sw ").append(a).append(", -").append(4 * r.nextInt(100)).append('(').append(b).append(')'); break;
+            case 4: out.append("  beq ").append(a).append(", ").append(b).append(", ").append(near); break;
+            case 5: out.append("  bne ").append(a).append(", $zero, ").append(near); break;
+            case 6: out.append("  j L").append(r.nextInt(labels)); break;
+            case 7: out.append("  li ").append(a).append(", ").append(r.nextInt()); break;
+            case 8: out.append("  la ").append(a).append(", L").append(r.nextInt(labels)); break;
+            case 9: out.append("  move ").append(a).append(", ").append(b); break;
+            case 10: out.append("  inc ").append(a).append(", ").append(r.nextInt(100)); break;
+            case 11: out.append("  swap ").append(a).append(", ").append(b); break;
+            case 12:
+                out.append(".rept ").append(1 + r.nextInt(5)).append("\n  sll ").append(a)
+                    .append(", ").append(b).append(", ").append(r.nextInt(32))
+                    .append("\n  inc ").append(c).append(", 1\n.endr");
+                break;
+            case 13: out.append("  .word 0x").append(Integer.toHexString(r.nextInt())); break;
+            case 14: out.append("  lui ").append(a).append(", 0x").append(Integer.toHexString(r.nextInt(0x10000))); break;
+            case 15:
+                if(r.nextInt(20) == 0 && segment < 50) {
+                    out.append(".text 0x").append(Integer.toHexString(0x00800000 + 0x400000 * ++segment))
+                        .append("\nS").append(segment).append(':');
+                    first = i / 7 + 1;
+                    anchor = "S" + segment;
+                } else {
+                    out.append("  jr $ra");
+                }
+                break;
+            case 16: out.append("  slt ").append(a).append(", ").append(b).append(", ").append(c); break;
+            case 17: out.append("  nop"); break;
+            case 18:
+                // one statement of more words than the Encoder splits at
+                out.append(".rept ").append(1000 + r.nextInt(2000)).append("\n  inc ").append(a)
+                    .append(", 1\n  bne ").append(a).append(", $zero, ").append(near)
+                    .append("\n.endr\nR").append(i).append(':');
+                first = i / 7 + 1;
+                anchor = "R" + i;
+                break;
+            default:
+                if(errors == ENCODING) {
+                    out.append(r.nextBoolean() ? "  addi " + a + ", " + b + ", 99999999"
+                        : "  beq " + a + ", " + b + ", nowhere");
+                } else {
+                    out.append(r.nextBoolean() ? "  bogus " + a
+                        : ".rept " + (Program32.MAX_BLOCK + 1) + "\n  nop\n.endr");
+                }
+                break;
+            }
+            out.append('\n');
+        }
+        out.append("end: j end\n");
+        return out.toString();
+    }
+
+    // src with a few lines changed, as an edit in the listing would
+    private static String edit(Random r, String src, int errors) {
+        String[] lines = src.split("\n", -1);
+        for(int i = 0; i < 5; i++) {
+            int k = 10 + r.nextInt(lines.length - 12);
+            if(lines[k].startsWith("  ") && !lines[k].startsWith("  .")) {
+                lines[k] = errors != NONE && i == 0 ? "  beq $t0, $t1, nowhere" : "  addi $t0, $t0, " + r.nextInt(100);
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        for(int i = 0; i < lines.length; i++) {
+            if(i > 0) out.append('\n');
+            out.append(lines[i]);
+        }
+        return out.toString();
+    }
+
+    //
+    // masked
+    //
+
+    // the operations of the ALU, by the op input
+    private static final int[] OPS = { 0x0, 0x1, 0x2, 0x6, 0x7, 0xC, 0x8, 0x9, 0xA };
+    private static final int[] WIDTHS = { 1, 2, 4, 8, 16, 31, 32 };
+
+    private String masked() {
+        Random r = new Random(seed);
+        int n = rounds * 20000;
+        for(int i = 0; i < n; i++) {
+            int width = WIDTHS[i % WIDTHS.length];
+            MaskedWord a = random(r, width), b = random(r, width);
+            Value va = a.toValue(), vb = b.toValue();
+            MaskedWord a2 = MaskedWord.of(va, width), b2 = MaskedWord.of(vb, width);
+            if(a2.error != a.error || a2.unknown != a.unknown || a2.value != a.value) {
+                return "MaskedWord.of(" + va + ") does not give the word back";
+            }
+            Value want = Adder.computeSum(BitWidth.create(width), va, vb)[0];
+            Value got = a2.add(b2).toValue();
+            if(!got.equals(want)) {
+                return va + " + " + vb + " is " + got + ", but Adder.computeSum gives " + want;
+            }
+        }
+
+        long partial = 0, defined = 0;
+        boolean[] overflow = new boolean[1];
+        Value[] maskedOverflow = new Value[1];
+        for(int i = 0; i < n; i++) {
+            int op = OPS[i % OPS.length];
+            MaskedWord a = random(r, 32), b = random(r, 32);
+            if(op >= 0x8 && r.nextBoolean()) {
+                // shift amounts with the odd undefined bit among the low five
+                a = new MaskedWord(32, r.nextInt(8) == 0 ? 1 << r.nextInt(5) : 0,
+                    r.nextInt() & r.nextInt() & 31, r.nextInt());
+            }
+            MaskedWord ans = alu(op, a, b, maskedOverflow);
+            Value zero = ans.isZero();
+            String what = "op " + Integer.toHexString(op) + " of " + a.toValue() + " and " + b.toValue()
+                + " gives " + ans.toValue() + ", zero " + zero + ", overflow " + maskedOverflow[0];
+            if(a.isFullyDefined() && b.isFullyDefined()) {
+                int want = alu(op, a.value, b.value, overflow);
+                if(!ans.isFullyDefined() || ans.value != want || zero != bool(want == 0)
+                        || maskedOverflow[0] != bool(overflow[0])) {
+                    return what + ", not " + Integer.toHexString(want);
+                }
+                continue;
+            }
+            // the undefined bits all 0, all 1, and random
+            for(int k = 0; k < 24; k++) {
+                int ca = k == 0 ? a.value : k == 1 ? a.value | ~a.defined() : a.value | (r.nextInt() & ~a.defined());
+                int cb = k == 0 ? b.value : k == 1 ? b.value | ~b.defined() : b.value | (r.nextInt() & ~b.defined());
+                int want = alu(op, ca, cb, overflow);
+                if(((want ^ ans.value) & ans.defined()) != 0
+                        || zero == Value.TRUE && want != 0 || zero == Value.FALSE && want == 0
+                        || maskedOverflow[0] == Value.TRUE && !overflow[0]
+                        || maskedOverflow[0] == Value.FALSE && overflow[0]) {
+                    return what + ", but " + Integer.toHexString(ca) + " and " + Integer.toHexString(cb)
+                        + " give " + Integer.toHexString(want) + ", overflow " + overflow[0];
+                }
+            }
+            partial++;
+            defined += Integer.bitCount(ans.defined());
+        }
+        System.out.println("masked: " + n + " sums the same as Adder.computeSum, " + n
+            + " operations sound, " + (partial == 0 ? 0 : 100 * defined / (32 * partial))
+            + "% of the bits of partial results defined");
+        return null;
+    }
+
+    // a word with a random share of error and unknown bits, or none
+    private static MaskedWord random(Random r, int width) {
+        int density = 2 + r.nextInt(40);
+        int error = 0, unknown = 0;
+        for(int i = 0; i < width; i++) {
+            int k = r.nextInt(density);
+            if(k == 0) error |= 1 << i;
+            else if(k == 1) unknown |= 1 << i;
+        }
+        if(r.nextInt(4) == 0) error = 0;
+        if(r.nextInt(3) == 0) error = unknown = 0;
+        return new MaskedWord(width, error, unknown, r.nextInt());
+    }
+
+    private static Value bool(boolean b) {
+        return b ? Value.TRUE : Value.FALSE;
+    }
+
+    // what the ALU computes from defined inputs
+    private static int alu(int op, int a, int b, boolean[] overflow) {
+        overflow[0] = false;
+        switch(op) {
+        case 0x0: return a & b;
+        case 0x1: return a | b;
+        case 0x2:
+            overflow[0] = ((a ^ (a + b)) & (b ^ (a + b))) < 0;
+            return a + b;
+        case 0x6:
+            overflow[0] = ((a ^ b) & (a ^ (a - b))) < 0;
+            return a - b;
+        case 0x7: return a < b ? 1 : 0;
+        case 0xC: return ~(a | b);
+        case 0x8: return b << a;
+        case 0x9: return b >>> a;
+        case 0xA: return b >> a;
+        default: return 0;
+        }
+    }
+
+    // and what it computes from partial ones
+    private static MaskedWord alu(int op, MaskedWord a, MaskedWord b, Value[] overflow) {
+        overflow[0] = Value.FALSE;
+        MaskedWord ans;
+        switch(op) {
+        case 0x0: return a.and(b);
+        case 0x1: return a.or(b);
+        case 0x2:
+            ans = a.add(b);
+            overflow[0] = a.overflow(b, ans, false);
+            return ans;
+        case 0x6:
+            ans = a.sub(b);
+            overflow[0] = a.overflow(b, ans, true);
+            return ans;
+        case 0x7: return a.lessThan(b);
+        case 0xC: return a.or(b).not();
+        case 0x8: return b.shift(a, MaskedWord.SLL);
+        case 0x9: return b.shift(a, MaskedWord.SRL);
+        case 0xA: return b.shift(a, MaskedWord.SRA);
+        default: return new MaskedWord(32, 0, 0, 0);
+        }
+    }
+
+    //
+    // memory
+    //
+
+    private static final int[] MEMORY_WIDTHS = { 8, 16, 32 };
+    // eight pages of 4K words
+    private static final int MEMORY_ADDR_BITS = 15;
+
+    private String memory() {
+        Random r = new Random(seed);
+        int size = 1 << MEMORY_ADDR_BITS;
+        long ops = 0, clones = 0, images = 0;
+        for(int round = 0; round < rounds; round++) {
+            int width = MEMORY_WIDTHS[round % MEMORY_WIDTHS.length];
+            int mask = width == 32 ? -1 : (1 << width) - 1;
+            MemContents[] mem = { MemContents.create(MEMORY_ADDR_BITS, width), null };
+            int[][] model = { new int[size], null };
+            File file = null;
+            try {
+                if(round % 2 == 1) {
+                    file = File.createTempFile("selfcheck", ".img");
+                    file.deleteOnExit();
+                    mem[0].setImageFile(file);
+                    images++;
+                }
+                int pageSize = mem[0].getPageSize();
+                for(int step = 0; step < 100; step++) {
+                    if(step % 40 == 20) {
+                        // a clone, written to alongside from now on
+                        mem[1] = (MemContents) mem[0].clone();
+                        model[1] = (int[]) model[0].clone();
+                        clones++;
+                    }
+                    int k = mem[1] == null ? 0 : r.nextInt(2);
+                    String what = write(r, mem[k], model[k], mask, pageSize);
+                    ops++;
+                    for(int m = 0; m < 2 && mem[m] != null; m++) {
+                        String failure = compare(mem[m], model[m]);
+                        if(failure != null) {
+                            return "round " + round + ", width " + width + (file == null ? "" : ", image")
+                                + ", step " + step + ", after " + what + " on the "
+                                + (k == 0 ? "original" : "clone") + ": the "
+                                + (m == 0 ? "original" : "clone") + " " + failure;
+                        }
+                    }
+                }
+                if(file != null) {
+                    mem[0].flushImage();
+                    MemContents reread = MemContents.create(MEMORY_ADDR_BITS, width);
+                    reread.setImageFile(file);
+                    String failure = compare(reread, model[0]);
+                    reread.setImageFile(null);
+                    if(failure != null) {
+                        return "round " + round + ", width " + width + ": the image file read back "
+                            + failure;
+                    }
+                }
+            } catch(IOException e) {
+                return "round " + round + ": cannot use an image file: " + e.getMessage();
+            } finally {
+                if(file != null) {
+                    try {
+                        mem[0].setImageFile(null);
+                    } catch(IOException e) { }
+                    file.delete();
+                }
+            }
+        }
+        System.out.println("memory: " + ops + " writes to " + rounds + " memories, " + images
+            + " of them image-backed, and " + clones + " clones the same as an array");
+        return null;
+    }
+
+    // Makes the same random write to mem and model, mostly around a page
+    // boundary, and says what it was.
+    private static String write(Random r, MemContents mem, int[] model, int mask, int pageSize) {
+        int size = model.length;
+        int boundary = pageSize * (1 + r.nextInt(size / pageSize - 1));
+        int start = Math.max(0, boundary - 1 - r.nextInt(pageSize / 2));
+        int len = Math.min(size - start, 1 + r.nextInt(pageSize * 2));
+        int value = r.nextBoolean() ? 0 : r.nextInt();
+        switch(r.nextInt(10)) {
+        case 0: case 1: case 2:
+            int addr = r.nextBoolean() ? boundary - 1 + r.nextInt(2) : r.nextInt(size);
+            mem.set(addr, value);
+            model[addr] = value & mask;
+            return "set(" + addr + ", " + Integer.toHexString(value) + ")";
+        case 3: case 4: case 5:
+            int[] values = new int[len];
+            for(int i = 0; i < len; i++) values[i] = r.nextInt(3) == 0 ? r.nextInt() : 0;
+            mem.set(start, values);
+            for(int i = 0; i < len; i++) model[start + i] = values[i] & mask;
+            return "set(" + start + ", " + len + " words)";
+        case 6: case 7:
+            mem.fill(start, len, value);
+            Arrays.fill(model, start, start + len, value & mask);
+            return "fill(" + start + ", " + len + ", " + Integer.toHexString(value) + ")";
+        case 8:
+            // whole pages
+            start = boundary - pageSize * r.nextInt(boundary / pageSize + 1);
+            len = Math.min(size - start, pageSize * (1 + r.nextInt(3)));
+            mem.fill(start, len, value);
+            Arrays.fill(model, start, start + len, value & mask);
+            return "fill(" + start + ", " + len + ", " + Integer.toHexString(value) + ")";
+        default:
+            switch(r.nextInt(4)) {
+            case 0:
+                mem.clear();
+                Arrays.fill(model, 0);
+                return "clear()";
+            case 1:
+                // a zero over each word of a page that is not, one by one
+                int page = boundary - pageSize * r.nextInt(2);
+                for(int i = page; i < page + pageSize; i++) {
+                    if(model[i] != 0) mem.set(i, 0);
+                }
+                Arrays.fill(model, page, page + pageSize, 0);
+                return "set(..., 0) over page " + page / pageSize;
+            case 2:
+                mem.set(0, new int[size]);
+                Arrays.fill(model, 0);
+                return "set(0, " + size + " zeroes)";
+            default:
+                mem.fill(start, len, 0);
+                Arrays.fill(model, start, start + len, 0);
+                return "fill(" + start + ", " + len + ", 0)";
+            }
+        }
+    }
+
+    // Compares every word, and which pages hold anything, which is what
+    // the count of non-zero words in each page decides.
+    private static String compare(MemContents mem, int[] model) {
+        boolean clear = true;
+        int pageSize = mem.getPageSize();
+        for(int p = 0; p < model.length / pageSize; p++) {
+            boolean inUse = false;
+            for(int i = p * pageSize; i < (p + 1) * pageSize; i++) {
+                if(mem.get(i) != model[i]) {
+                    return "holds " + Integer.toHexString(mem.get(i)) + " at " + i
+                        + ", not " + Integer.toHexString(model[i]);
+                }
+                if(model[i] != 0) inUse = true;
+            }
+            if(mem.isPageInUse(p) != inUse) {
+                return "says page " + p + " is " + (inUse ? "not " : "") + "in use";
+            }
+            if(inUse) clear = false;
+        }
+        if(mem.isClear() != clear) return "says isClear() is " + !clear;
+        return null;
+    }
+}